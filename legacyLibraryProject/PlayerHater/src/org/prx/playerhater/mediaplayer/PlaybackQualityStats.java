@@ -0,0 +1 @@
+../../../../../../../src/main/java/org/prx/playerhater/mediaplayer/PlaybackQualityStats.java
\ No newline at end of file
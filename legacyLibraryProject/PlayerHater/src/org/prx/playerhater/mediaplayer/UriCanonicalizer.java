@@ -0,0 +1 @@
+../../../../../../../src/main/java/org/prx/playerhater/mediaplayer/UriCanonicalizer.java
\ No newline at end of file
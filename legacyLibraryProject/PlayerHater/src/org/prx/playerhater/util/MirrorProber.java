@@ -0,0 +1 @@
+../../../../../../../src/main/java/org/prx/playerhater/util/MirrorProber.java
\ No newline at end of file
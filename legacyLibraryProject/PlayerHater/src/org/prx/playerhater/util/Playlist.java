@@ -0,0 +1 @@
+../../../../../../../src/main/java/org/prx/playerhater/util/Playlist.java
\ No newline at end of file
@@ -15,41 +15,188 @@
  ******************************************************************************/
 package org.prx.playerhater;
 
+import java.io.File;
+
+import org.prx.playerhater.mediaplayer.Fader;
+import org.prx.playerhater.mediaplayer.Lookahead;
 import org.prx.playerhater.mediaplayer.MediaPlayerPool;
+import org.prx.playerhater.mediaplayer.MediaPlayerPool.EvictionPolicy;
+import org.prx.playerhater.mediaplayer.MediaPlayerPool.PlayerFactory;
+import org.prx.playerhater.mediaplayer.MediaPlayerPoolStats;
+import org.prx.playerhater.mediaplayer.UriCanonicalizer;
+import org.prx.playerhater.mediaplayer.UriCanonicalizer.OnKeyChangedListener;
+import org.prx.playerhater.mediaplayer.PlaybackQuality;
+import org.prx.playerhater.mediaplayer.PlayerFuture;
 import org.prx.playerhater.mediaplayer.PlaylistSupportingPlayer;
+import org.prx.playerhater.mediaplayer.RecoveryPolicy;
 import org.prx.playerhater.service.PlayerHaterService;
 import org.prx.playerhater.songs.SongQueue;
 import org.prx.playerhater.songs.SongQueue.OnQueuedSongsChangedListener;
+import org.prx.playerhater.util.Config;
+import org.prx.playerhater.util.Log;
+import org.prx.playerhater.util.PlaylistCache;
+import org.prx.playerhater.util.Scheduler;
+import org.prx.playerhater.util.Tracer;
 
+import android.annotation.TargetApi;
+import android.content.Context;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
 import android.media.MediaPlayer.OnErrorListener;
+import android.net.Uri;
+import android.os.Build;
 
 public class PlaybackService extends PlayerHaterService implements
-		OnQueuedSongsChangedListener, OnErrorListener, OnCompletionListener {
+		OnQueuedSongsChangedListener, OnErrorListener, OnCompletionListener,
+		EvictionPolicy, OnKeyChangedListener {
+
+	private static final String PLAYLIST_CACHE_FILE = "playerhater_playlists";
 
 	private MediaPlayerPool<PlaylistSupportingPlayer> mMediaPlayerPool;
+	private Lookahead mLookahead;
+	private int mLookaheadSongs;
+	private boolean mLookaheadPrevious;
+	private boolean mGapless;
+
+	/*
+	 * The player for the next song in the queue, checked out of the pool so
+	 * that the now playing player can hand off to it without a gap. It is
+	 * only set, and chained, once the future has a prepared player.
+	 */
+	private PlayerFuture<PlaylistSupportingPlayer> mNextMediaPlayerFuture;
+	private PlaylistSupportingPlayer mNextMediaPlayer;
+	private Uri mNextMediaPlayerUri;
+	private PlaylistSupportingPlayer mHandedOffPlayer;
+	private Uri mHandedOffUri;
+
+	/*
+	 * The quality report for a song whose player was recycled when it
+	 * completed or failed, which is before onSongFinished is called.
+	 */
+	private PlaybackQuality mFinishedQuality;
+
+	/*
+	 * Errors which the policy takes to be transient load the song again,
+	 * from where it was, after a backoff, instead of skipping it. The retry
+	 * count goes back to zero once audio plays again.
+	 */
+	private RecoveryPolicy mRecoveryPolicy;
+	private volatile int mRecoveryRetries;
+	private PlaylistSupportingPlayer mRecoveringPlayer;
+	private Uri mRecoveringUri;
+	private int mRecoveringPosition;
+
+	private final Runnable mRecover = new Runnable() {
+
+		@Override
+		public void run() {
+			recover();
+		}
+	};
+
+	private final PlayerFuture.Callback<PlaylistSupportingPlayer> mNextMediaPlayerReady = new PlayerFuture.Callback<PlaylistSupportingPlayer>() {
+
+		@Override
+		public void onPlayerReady(PlaylistSupportingPlayer player) {
+			onNextMediaPlayerReady(player);
+		}
+	};
 
 	@Override
 	public void onCreate() {
 		super.onCreate();
-		mMediaPlayerPool = MediaPlayerPool
-				.getInstance(getApplicationContext(), PlaylistSupportingPlayer.class);
+		Config config = Config.getInstance(getApplicationContext());
+		mMediaPlayerPool = MediaPlayerPool.getInstance(getApplicationContext(),
+				newPlayerFactory(config), config.getMediaPlayerPoolSize());
+		mMediaPlayerPool.setEvictionPolicy(this);
+		mMediaPlayerPool.setIdleTimeout(config.getIdlePlayerTimeout());
+		mMediaPlayerPool.setMaxPlayers(config.getMediaPlayerPoolSize()
+				+ config.getMaxOverflowPlayers());
+		mMediaPlayerPool.setExhaustionWait(config.getExhaustionWait());
+		UriCanonicalizer canonicalizer = new UriCanonicalizer(
+				config.getIgnoredQueryParameters(),
+				config.getResolveRedirects());
+		canonicalizer.setOnKeyChangedListener(this);
+		mMediaPlayerPool.setKeyCanonicalizer(canonicalizer);
+		mLookaheadSongs = Math.max(0, config.getLookaheadSongs());
+		mLookaheadPrevious = config.getLookaheadPrevious();
+		mGapless = config.getGapless() && mMediaPlayerPool.getCapacity() > 1;
+		mLookahead = new Lookahead(mMediaPlayerPool, getApplicationContext(),
+				mLookaheadSongs + (mLookaheadPrevious ? 1 : 0));
+		mRecoveryPolicy = new RecoveryPolicy(config.getErrorRetries(),
+				config.getErrorRetryDelay(), config.getErrorRetryMaxDelay());
+		if (config.getTraceToLog() && !Tracer.isEnabled()) {
+			Tracer.setSink(Tracer.LOG_SINK);
+		}
+		PlaylistCache playlistCache = PlaylistCache.getInstance();
+		playlistCache.setMaxEntries(config.getPlaylistCacheSize());
+		playlistCache.setStore(config.getPlaylistCacheSize() > 0 ? new File(
+				getCacheDir(), PLAYLIST_CACHE_FILE) : null);
+	}
+
+	private static PlayerFactory<PlaylistSupportingPlayer> newPlayerFactory(
+			Config config) {
+		final int fadeDuration = config.getFadeDuration();
+		final int crossfadeDuration = config.getGapless() ? config
+				.getCrossfadeDuration() : 0;
+		final Fader.Curve curve = Fader.getCurve(config.getFadeCurve());
+		return new PlayerFactory<PlaylistSupportingPlayer>() {
+
+			@Override
+			public PlaylistSupportingPlayer newPlayer(Context context) {
+				PlaylistSupportingPlayer player = new PlaylistSupportingPlayer(
+						context);
+				player.setFades(fadeDuration, crossfadeDuration, curve);
+				return player;
+			}
+		};
+	}
+
+	@Override
+	public MediaPlayerPoolStats getMediaPlayerPoolStats() {
+		return mMediaPlayerPool.getStats();
+	}
+
+	@Override
+	public void resetMediaPlayerPoolStats() {
+		mMediaPlayerPool.resetStats();
 	}
 
 	@Override
 	public void onDestroy() {
+		Scheduler.getDefault().removeCallbacks(mRecover);
+		synchronized (this) {
+			takeNextMediaPlayer(null);
+		}
 		mMediaPlayerPool.release();
 		super.onDestroy();
 	}
 
+	@Override
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		mMediaPlayerPool.onTrimMemory(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		mMediaPlayerPool.onLowMemory();
+	}
+
 	@Override
 	public boolean play(Song song, int startTime) {
-		onSongFinished(nowPlaying(), PlayerHater.FINISH_SKIP_BUTTON);
-		onNowPlayingChanged(song, nowPlaying());
-		getQueue().appendAndSkip(song);
-		seekTo(startTime);
-		return play();
+		Tracer.Span span = Tracer.begin("service.play");
+		try {
+			onSongFinished(nowPlaying(), PlayerHater.FINISH_SKIP_BUTTON);
+			onNowPlayingChanged(song, nowPlaying());
+			getQueue().appendAndSkip(song);
+			seekTo(startTime);
+			return play();
+		} finally {
+			span.end();
+		}
 	}
 
 	@Override
@@ -141,55 +288,281 @@ public class PlaybackService extends PlayerHaterService implements
 	@Override
 	public void onNowPlayingChanged(Song nowPlaying, Song was) {
 		startTransaction();
+		Uri uri = getUri(nowPlaying);
+		synchronized (this) {
+			PlaylistSupportingPlayer handedOff = mHandedOffPlayer;
+			mHandedOffPlayer = null;
+			if (handedOff == null || handedOff != peekMediaPlayer()
+					|| uri == null || !uri.equals(mHandedOffUri)) {
+				switchMediaPlayer(uri);
+			}
+			// Otherwise onCompletion already switched over without stopping.
+			if (peekMediaPlayer() != null) {
+				peekMediaPlayer().markPlayRequested();
+			}
+		}
+		commitTransaction();
+		onSongChanged(nowPlaying);
+	}
+
+	private synchronized void switchMediaPlayer(Uri uri) {
+		PlaylistSupportingPlayer nextMediaPlayer = takeNextMediaPlayer(uri);
 		mMediaPlayerPool.recycle(peekMediaPlayer());
-		if (nowPlaying == null) {
+		if (uri == null) {
 			setMediaPlayer(null);
 		} else {
-			setMediaPlayer(mMediaPlayerPool.getPlayer(getApplicationContext(),
-					nowPlaying.getUri()));
+			if (nextMediaPlayer == null) {
+				nextMediaPlayer = mMediaPlayerPool.getPlayer(
+						getApplicationContext(), uri);
+			}
+			setMediaPlayer(nextMediaPlayer);
 			if (isPlaying()) {
 				getMediaPlayer().start();
 			} else {
 
 			}
 		}
-		commitTransaction();
-		onSongChanged(nowPlaying);
 	}
 
 	@Override
 	public void onNextSongChanged(Song nextSong, Song was) {
-		if (nextSong != null) {
-			mMediaPlayerPool
-					.prepare(getApplicationContext(), nextSong.getUri());
-		}
 		onNextSongChanged(nextSong);
 	}
 
+	@Override
+	public void onQueueChanged() {
+		updateNextMediaPlayer();
+		Uri[] targets = new Uri[mLookaheadSongs + (mLookaheadPrevious ? 1 : 0)];
+		for (int i = 0; i < mLookaheadSongs; i++) {
+			targets[i] = getUri(getQueue().getSongAtOffset(i + 1));
+		}
+		if (mLookaheadPrevious) {
+			targets[mLookaheadSongs] = getUri(getQueue().getSongAtOffset(-1));
+		}
+		synchronized (this) {
+			for (int i = 0; i < targets.length; i++) {
+				if (targets[i] != null && targets[i].equals(mNextMediaPlayerUri)) {
+					targets[i] = null;
+				}
+			}
+		}
+		mLookahead.update(getUri(nowPlaying()), targets);
+	}
+
+	/*
+	 * Checks out a player for the next song, without waiting for it, and
+	 * chains the now playing player to it once it is prepared. This runs on
+	 * the queue's thread with the service's lock held, so it mustn't block on
+	 * the pool.
+	 */
+	private synchronized void updateNextMediaPlayer() {
+		Uri uri = null;
+		if (mGapless && peekMediaPlayer() != null) {
+			uri = getUri(getNextSong());
+		}
+		if (uri == null || !uri.equals(mNextMediaPlayerUri)) {
+			takeNextMediaPlayer(null);
+			if (uri != null) {
+				mNextMediaPlayerUri = uri;
+				mNextMediaPlayerFuture = mMediaPlayerPool.getPlayerAsync(
+						getApplicationContext(), uri, mNextMediaPlayerReady);
+			}
+		}
+		chainNextMediaPlayer();
+	}
+
+	private synchronized void onNextMediaPlayerReady(
+			PlaylistSupportingPlayer player) {
+		if (mNextMediaPlayerFuture == null
+				|| mNextMediaPlayerFuture.getPlayer() != player) {
+			// The next song changed while this one was being prepared.
+			return;
+		}
+		mNextMediaPlayer = player;
+		chainNextMediaPlayer();
+	}
+
+	private synchronized void chainNextMediaPlayer() {
+		if (peekMediaPlayer() != null) {
+			peekMediaPlayer().setNextPlayer(mNextMediaPlayer);
+		}
+	}
+
+	/*
+	 * Unchains the now playing player and returns the next song's player if
+	 * it was checked out for uri and is prepared. Otherwise it goes back to
+	 * the pool (or its request is cancelled) and this returns null.
+	 */
+	private synchronized PlaylistSupportingPlayer takeNextMediaPlayer(Uri uri) {
+		if (peekMediaPlayer() != null) {
+			peekMediaPlayer().setNextPlayer(null);
+		}
+		PlayerFuture<PlaylistSupportingPlayer> future = mNextMediaPlayerFuture;
+		PlaylistSupportingPlayer player = mNextMediaPlayer;
+		Uri playerUri = mNextMediaPlayerUri;
+		mNextMediaPlayerFuture = null;
+		mNextMediaPlayer = null;
+		mNextMediaPlayerUri = null;
+		if (future == null) {
+			return null;
+		}
+		if (player != null && uri != null && uri.equals(playerUri)) {
+			return player;
+		}
+		if (!future.cancel(false)) {
+			mMediaPlayerPool.recycle(future.getPlayer());
+		}
+		return null;
+	}
+
+	private static Uri getUri(Song song) {
+		return song != null ? song.getUri() : null;
+	}
+
 	@Override
 	public void onCompletion(MediaPlayer mp) {
 		if (peekMediaPlayer() != null && peekMediaPlayer().equals(mp)) {
 			startTransaction();
-			mMediaPlayerPool.recycle(peekMediaPlayer());
-			setMediaPlayer(null);
+			handOff();
 			onSongFinished(nowPlaying(), PlayerHater.FINISH_SONG_END);
 			getQueue().next();
 		}
 	}
 
+	/*
+	 * Swaps in the player for the next song, which is already playing if the
+	 * handoff went as planned, so that listeners never see playback stop.
+	 */
+	private synchronized void handOff() {
+		Uri nextUri = getUri(getNextSong());
+		PlaylistSupportingPlayer next = takeNextMediaPlayer(nextUri);
+		recycleFinishedMediaPlayer();
+		if (next != null) {
+			if (!next.isPlaying()) {
+				next.start();
+			}
+			mHandedOffPlayer = next;
+			mHandedOffUri = nextUri;
+		}
+		setMediaPlayer(next);
+	}
+
 	@Override
 	public boolean onError(MediaPlayer mp, int what, int extra) {
 		if (peekMediaPlayer() != null && peekMediaPlayer().equals(mp)) {
-			startTransaction();
-			mMediaPlayerPool.recycle(peekMediaPlayer());
-			setMediaPlayer(null);
-			onSongFinished(nowPlaying(), PlayerHater.FINISH_ERROR);
-			getQueue().next();
+			if (!scheduleRecovery(what, extra)) {
+				skipAfterError();
+			}
 			return true;
 		}
 		return false;
 	}
 
+	private void skipAfterError() {
+		startTransaction();
+		recycleFinishedMediaPlayer();
+		setMediaPlayer(null);
+		onSongFinished(nowPlaying(), PlayerHater.FINISH_ERROR);
+		getQueue().next();
+	}
+
+	private synchronized boolean scheduleRecovery(int what, int extra) {
+		PlaylistSupportingPlayer player = peekMediaPlayer();
+		Uri uri = getUri(nowPlaying());
+		if (uri == null) {
+			return false;
+		}
+		long delay = mRecoveryPolicy.getRetryDelay(uri, what, extra,
+				mRecoveryRetries);
+		if (delay == RecoveryPolicy.GIVE_UP) {
+			mRecoveryRetries = 0;
+			return false;
+		}
+		Log.d("Error " + what + "/" + extra + " on " + uri + ", retrying in "
+				+ delay + "ms");
+		if (mRecoveryRetries == 0) {
+			// Later errors come while loading, with the position lost.
+			mRecoveringPosition = player.getDuration() > 0 ? player
+					.getCurrentPosition() : 0;
+		}
+		mRecoveryRetries++;
+		mRecoveringPlayer = player;
+		mRecoveringUri = uri;
+		player.setWaitingToRecover(isPlaying() || isLoading());
+		Scheduler.getDefault().removeCallbacks(mRecover);
+		Scheduler.getDefault().postDelayed(mRecover, delay);
+		return true;
+	}
+
+	private void recover() {
+		boolean recovered;
+		synchronized (this) {
+			PlaylistSupportingPlayer player = mRecoveringPlayer;
+			mRecoveringPlayer = null;
+			if (player == null || player != peekMediaPlayer()) {
+				return;
+			}
+			recovered = player.recover(getApplicationContext(),
+					mRecoveringUri, mRecoveringPosition,
+					player.isWaitingToRecover());
+			if (recovered) {
+				chainNextMediaPlayer();
+			}
+		}
+		if (!recovered) {
+			skipAfterError();
+		}
+	}
+
+	private synchronized void cancelRecovery() {
+		Scheduler.getDefault().removeCallbacks(mRecover);
+		mRecoveringPlayer = null;
+		mRecoveringUri = null;
+		mRecoveryRetries = 0;
+	}
+
+	@Override
+	public void onStateChanged(int state) {
+		if (state == PlayerHater.STATE_PLAYING
+				|| state == PlayerHater.STATE_STREAMING) {
+			mRecoveryRetries = 0;
+		}
+		super.onStateChanged(state);
+	}
+
+	private synchronized void recycleFinishedMediaPlayer() {
+		if (peekMediaPlayer() != null) {
+			mFinishedQuality = peekMediaPlayer().getPlaybackQuality();
+		}
+		mMediaPlayerPool.recycle(peekMediaPlayer());
+	}
+
+	@Override
+	protected void onSongFinished(Song nowPlaying, int reason) {
+		PlaybackQuality quality;
+		synchronized (this) {
+			quality = mFinishedQuality;
+			mFinishedQuality = null;
+			if (quality == null && peekMediaPlayer() != null) {
+				quality = peekMediaPlayer().getPlaybackQuality();
+			}
+		}
+		if (nowPlaying != null && quality != null) {
+			onPlaybackQualityReport(nowPlaying, quality);
+		}
+		super.onSongFinished(nowPlaying, reason);
+	}
+
+	@Override
+	public int getEvictionPriority(Uri uri) {
+		return getQueue().getDistanceFromPlayhead(uri);
+	}
+
+	@Override
+	public void onKeyChanged(Uri oldKey, Uri newKey) {
+		mMediaPlayerPool.rekey(oldKey, newKey);
+	}
+
 	@Override
 	public Song getNextSong() {
 		return getQueue().getNextPlaying();
@@ -199,6 +572,9 @@ public class PlaybackService extends PlayerHaterService implements
 	protected synchronized void setMediaPlayer(
 			PlaylistSupportingPlayer mediaPlayer) {
 		PlaylistSupportingPlayer oldPlayer = peekMediaPlayer();
+		if (oldPlayer != mediaPlayer) {
+			cancelRecovery();
+		}
 		if (oldPlayer != null) {
 			oldPlayer.setOnErrorListener(null);
 			oldPlayer.setOnCompletionListener(null);
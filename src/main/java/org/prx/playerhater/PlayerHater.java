@@ -15,6 +15,8 @@
  ******************************************************************************/
 package org.prx.playerhater;
 
+import org.prx.playerhater.mediaplayer.MediaPlayerPoolStats;
+import org.prx.playerhater.mediaplayer.PlaybackQualityStats;
 import org.prx.playerhater.wrappers.BoundPlayerHater;
 import org.prx.playerhater.util.Config;
 import org.prx.playerhater.util.IPlayerHater;
@@ -51,6 +53,36 @@ public abstract class PlayerHater implements IPlayerHater {
 		return false;
 	}
 
+	/**
+	 * Gets the playback quality reports for every song played since the
+	 * service started, added up. Reports for individual songs go to
+	 * {@link PlayerHaterPlugin#onPlaybackQualityReport}.
+	 * 
+	 * @return The stats, or {@code null} if the service is not running in
+	 *         this process.
+	 */
+	public PlaybackQualityStats getPlaybackQualityStats() {
+		return null;
+	}
+
+	/**
+	 * Gets the service's media player pool counters (hit rate, prepare
+	 * latency, evictions and so on) and how its players are being used.
+	 * 
+	 * @return The stats, or {@code null} if the service is not running in
+	 *         this process.
+	 */
+	public MediaPlayerPoolStats getMediaPlayerPoolStats() {
+		return null;
+	}
+
+	/**
+	 * Zeroes the service's media player pool counters, if the service is
+	 * running in this process.
+	 */
+	public void resetMediaPlayerPoolStats() {
+	}
+
 	/**
 	 * Constructs an {@linkplain Intent} which will start the appropriate
 	 * {@linkplain PlayerHaterService} as configured in the project's
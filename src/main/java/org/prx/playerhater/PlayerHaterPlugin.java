@@ -17,6 +17,7 @@ package org.prx.playerhater;
 
 import org.prx.playerhater.PlayerHater;
 import org.prx.playerhater.Song;
+import org.prx.playerhater.mediaplayer.PlaybackQuality;
 
 import android.app.PendingIntent;
 import android.content.Context;
@@ -318,4 +319,20 @@ public interface PlayerHaterPlugin {
 	void onAlbumTitleChanged(String albumTitle);
 
     void onPlayerHaterShutdown();
+
+	/**
+	 * Called when a song stops playing, just before
+	 * {@link #onSongFinished(Song, int)}, with a report of how its playback
+	 * went.
+	 * <p>
+	 * <b>NOTE:</b> This method, by default, is not guaranteed to run on the UI
+	 * thread.
+	 * 
+	 * @param song
+	 *            The Song which was playing.
+	 * @param quality
+	 *            How long the song took to start, how often it stalled and so
+	 *            on.
+	 */
+	void onPlaybackQualityReport(Song song, PlaybackQuality quality);
 }
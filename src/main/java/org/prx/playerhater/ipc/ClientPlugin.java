@@ -18,6 +18,7 @@ package org.prx.playerhater.ipc;
 import org.prx.playerhater.PlayerHater;
 import org.prx.playerhater.PlayerHaterPlugin;
 import org.prx.playerhater.Song;
+import org.prx.playerhater.mediaplayer.PlaybackQuality;
 import org.prx.playerhater.songs.SongHost;
 import org.prx.playerhater.util.Log;
 
@@ -60,6 +61,17 @@ public class ClientPlugin implements PlayerHaterPlugin {
 		}
 	}
 
+	@Override
+	public void onPlaybackQualityReport(Song song, PlaybackQuality quality) {
+		try {
+			mClient.onPlaybackQualityReport(SongHost.getTag(song),
+					quality.toBundle());
+		} catch (RemoteException e) {
+			Log.e(CLIENT_ERROR, e);
+			throw new IllegalStateException(CLIENT_ERROR, e);
+		}
+	}
+
 	@Override
 	public void onDurationChanged(int duration) {
 		try {
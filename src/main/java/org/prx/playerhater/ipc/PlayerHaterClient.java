@@ -16,6 +16,7 @@
 package org.prx.playerhater.ipc;
 
 import org.prx.playerhater.PlayerHaterPlugin;
+import org.prx.playerhater.mediaplayer.PlaybackQuality;
 import org.prx.playerhater.songs.SongHost;
 
 import android.app.PendingIntent;
@@ -41,6 +42,13 @@ public class PlayerHaterClient extends IPlayerHaterClient.Stub {
 		mPlugin.onSongFinished(SongHost.getSong(songTag), reason);
 	}
 
+	@Override
+	public void onPlaybackQualityReport(int songTag, Bundle quality)
+			throws RemoteException {
+		mPlugin.onPlaybackQualityReport(SongHost.getSong(songTag),
+				PlaybackQuality.fromBundle(quality));
+	}
+
 	@Override
 	public void onDurationChanged(int duration) throws RemoteException {
 		mPlugin.onDurationChanged(duration);
@@ -16,8 +16,11 @@
 
 package org.prx.playerhater.ipc;
 
+import org.prx.playerhater.mediaplayer.MediaPlayerPoolStats;
+import org.prx.playerhater.mediaplayer.PlaybackQualityStats;
 import org.prx.playerhater.service.PlayerHaterService;
 import org.prx.playerhater.songs.SongHost;
+import org.prx.playerhater.util.Tracer;
 import org.prx.playerhater.wrappers.ThreadsafeServicePlayerHater;
 
 import android.app.Notification;
@@ -38,6 +41,30 @@ public class PlayerHaterServer extends IPlayerHaterServer.Stub {
 		mService = playerHater;
 	}
 
+	/**
+	 * Not part of the remote interface; only callable by clients in the
+	 * service's process.
+	 */
+	public PlaybackQualityStats getPlaybackQualityStats() {
+		return mService.getPlaybackQualityStats();
+	}
+
+	/**
+	 * Not part of the remote interface; only callable by clients in the
+	 * service's process.
+	 */
+	public MediaPlayerPoolStats getMediaPlayerPoolStats() {
+		return mService.getMediaPlayerPoolStats();
+	}
+
+	/**
+	 * Not part of the remote interface; only callable by clients in the
+	 * service's process.
+	 */
+	public void resetMediaPlayerPoolStats() {
+		mService.resetMediaPlayerPoolStats();
+	}
+
 	@Override
 	public void setClient(IPlayerHaterClient client) throws RemoteException {
 		mService.setClient(client);
@@ -91,8 +118,14 @@ public class PlayerHaterServer extends IPlayerHaterServer.Stub {
 	}
 
 	@Override
-	public boolean play(int songTag, Bundle songData, int startTime) throws RemoteException {
-		return mService.play(SongHost.getSong(songTag, songData), startTime);
+	public boolean play(int songTag, Bundle songData, int startTime,
+			long traceId) throws RemoteException {
+		Tracer.Span span = Tracer.resume("server.play", traceId);
+		try {
+			return mService.play(SongHost.getSong(songTag, songData), startTime);
+		} finally {
+			span.end();
+		}
 	}
 
 	@Override
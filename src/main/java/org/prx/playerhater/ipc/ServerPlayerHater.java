@@ -20,6 +20,7 @@ import org.prx.playerhater.Song;
 import org.prx.playerhater.songs.SongHost;
 import org.prx.playerhater.songs.Songs;
 import org.prx.playerhater.util.Log;
+import org.prx.playerhater.util.Tracer;
 
 import android.app.PendingIntent;
 import android.os.Bundle;
@@ -78,21 +79,20 @@ public class ServerPlayerHater extends PlayerHater {
 
 	@Override
 	public boolean play(Song song) {
-		try {
-			return mServer.play(SongHost.getTag(song), Songs.toBundle(song), 0);
-		} catch (RemoteException e) {
-			Log.e(SERVER_ERROR, e);
-			throw new IllegalStateException(SERVER_ERROR, e);
-		}
+		return play(song, 0);
 	}
 
 	@Override
 	public boolean play(Song song, int startTime) {
+		Tracer.Span span = Tracer.begin("ipc.play");
 		try {
-			return mServer.play(SongHost.getTag(song), Songs.toBundle(song), startTime);
+			return mServer.play(SongHost.getTag(song), Songs.toBundle(song),
+					startTime, Tracer.currentTraceId());
 		} catch (RemoteException e) {
 			Log.e(SERVER_ERROR, e);
 			throw new IllegalStateException(SERVER_ERROR, e);
+		} finally {
+			span.end();
 		}
 	}
 
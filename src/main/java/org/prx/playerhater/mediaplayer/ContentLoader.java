@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.prx.playerhater.util.Log;
+
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+
+/**
+ * Opens content:// {@link Uri}s for players on a small shared pool of
+ * threads, so that provider I/O never happens on the caller's thread or
+ * under a player's lock.
+ * <p>
+ * The most recently opened descriptors are kept open, since the same
+ * content is often played again (going back a song, or a player prepared
+ * ahead of time being replaced by one for the same song).
+ */
+final class ContentLoader {
+
+	interface Callback {
+
+		/**
+		 * Called on a loader thread. {@code descriptor} must be released
+		 * once the player is done with it.
+		 */
+		void onContentLoaded(Descriptor descriptor);
+
+		void onContentFailed(Exception e);
+	}
+
+	/**
+	 * An open descriptor which is shared between the cache and the players
+	 * using it, and is closed once none of them need it any more.
+	 */
+	static final class Descriptor {
+		private final ParcelFileDescriptor mFile;
+		private int mReferences = 1;
+
+		private Descriptor(ParcelFileDescriptor file) {
+			mFile = file;
+		}
+
+		FileDescriptor getFileDescriptor() {
+			return mFile.getFileDescriptor();
+		}
+
+		private synchronized Descriptor acquire() {
+			mReferences++;
+			return this;
+		}
+
+		synchronized void release() {
+			if (--mReferences == 0) {
+				try {
+					mFile.close();
+				} catch (IOException e) {
+					Log.d("Couldn't close " + mFile + ": " + e);
+				}
+			}
+		}
+	}
+
+	private static final int THREADS = 2;
+	private static final int CACHED_DESCRIPTORS = 4;
+
+	private static ContentLoader sInstance;
+
+	static synchronized ContentLoader getInstance() {
+		if (sInstance == null) {
+			sInstance = new ContentLoader();
+		}
+		return sInstance;
+	}
+
+	private final ExecutorService mExecutor = Executors.newFixedThreadPool(
+			THREADS, new ThreadFactory() {
+				private int mCount = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "PlayerHaterContent-"
+							+ ++mCount);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Map<Uri, Descriptor> mDescriptors = new LinkedHashMap<Uri, Descriptor>(
+			CACHED_DESCRIPTORS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Uri, Descriptor> eldest) {
+			if (size() > CACHED_DESCRIPTORS) {
+				eldest.getValue().release();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private ContentLoader() {}
+
+	/**
+	 * Opens {@code uri} in the background. Cancelling the returned
+	 * {@link Future} before the load starts means the callback is never
+	 * called.
+	 */
+	Future<?> load(final Context context, final Uri uri,
+			final Callback callback) {
+		return mExecutor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				Descriptor descriptor;
+				try {
+					descriptor = open(context, uri);
+				} catch (Exception e) {
+					Log.e("Couldn't open " + uri, e);
+					callback.onContentFailed(e);
+					return;
+				}
+				callback.onContentLoaded(descriptor);
+			}
+		});
+	}
+
+	private Descriptor open(Context context, Uri uri)
+			throws FileNotFoundException, RemoteException {
+		synchronized (mDescriptors) {
+			Descriptor descriptor = mDescriptors.get(uri);
+			if (descriptor != null) {
+				return descriptor.acquire();
+			}
+		}
+		ContentProviderClient client = context.getContentResolver()
+				.acquireContentProviderClient(uri);
+		if (client == null) {
+			throw new FileNotFoundException("No provider for " + uri);
+		}
+		Descriptor descriptor;
+		try {
+			ParcelFileDescriptor file = client.openFile(uri, "r");
+			if (file == null) {
+				throw new FileNotFoundException("Couldn't open " + uri);
+			}
+			descriptor = new Descriptor(file);
+		} finally {
+			client.release();
+		}
+		synchronized (mDescriptors) {
+			Descriptor previous = mDescriptors.put(uri, descriptor.acquire());
+			if (previous != null) {
+				previous.release();
+			}
+		}
+		return descriptor;
+	}
+}
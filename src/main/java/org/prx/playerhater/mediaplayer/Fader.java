@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import java.util.ArrayList;
+
+import org.prx.playerhater.util.Scheduler;
+
+/**
+ * Ramps the volume of players up or down over time.
+ * <p>
+ * Every fade running on a fader is stepped by one task on its
+ * {@link Scheduler}, which is only scheduled while there is a fade to step,
+ * so fades don't cost a thread (or a timer) each.
+ * <p>
+ * A crossfade is a fade out on one player and a fade in on another with
+ * the same duration and curve.
+ */
+public class Fader {
+
+	/**
+	 * How often, in milliseconds, running fades are stepped.
+	 */
+	public static final int STEP_INTERVAL = 50;
+
+	/**
+	 * The shape of a fade.
+	 */
+	public interface Curve {
+
+		/**
+		 * @param progress
+		 *            How far through a fade in it is, from 0 to 1.
+		 * @return The gain, from 0 to 1, at that point.
+		 */
+		float getGain(float progress);
+	}
+
+	/**
+	 * Gain rises evenly. Crossfades dip in the middle.
+	 */
+	public static final Curve LINEAR = new Curve() {
+
+		@Override
+		public float getGain(float progress) {
+			return progress;
+		}
+	};
+
+	/**
+	 * The outgoing and incoming players' powers add up to the same loudness
+	 * all the way through a crossfade.
+	 */
+	public static final Curve EQUAL_POWER = new Curve() {
+
+		@Override
+		public float getGain(float progress) {
+			return (float) Math.sin(progress * Math.PI / 2);
+		}
+	};
+
+	/**
+	 * Something whose volume is faded, usually a player.
+	 */
+	public interface Target {
+
+		/**
+		 * Sets the gain, from 0 to 1, applied on top of the target's volume.
+		 * Called on the fader's scheduler; {@code fade} is the fade the step
+		 * belongs to, which may have been cancelled since the step started.
+		 */
+		void onFadeStep(Fade fade, float gain);
+	}
+
+	public final class Fade {
+		private final Target mTarget;
+		private final Curve mCurve;
+		private final boolean mIn;
+		private final long mStart;
+		private final long mDuration;
+		private volatile boolean mDone;
+
+		private Fade(Target target, Curve curve, boolean in, long duration) {
+			mTarget = target;
+			mCurve = curve;
+			mIn = in;
+			mStart = mScheduler.uptimeMillis();
+			mDuration = duration;
+		}
+
+		/**
+		 * Stops the fade where it is. The target is left at whatever gain
+		 * it was last given.
+		 */
+		public void cancel() {
+			mDone = true;
+			synchronized (Fader.this) {
+				mFades.remove(this);
+			}
+		}
+
+		/**
+		 * @return Whether the fade has reached its end or been cancelled.
+		 */
+		public boolean isDone() {
+			return mDone;
+		}
+
+		/**
+		 * @return The gain the target starts at.
+		 */
+		public float getStartGain() {
+			return mCurve.getGain(mIn ? 0 : 1);
+		}
+
+		private void step(long now) {
+			float progress = mDuration <= 0 ? 1
+					: Math.min(1, (float) (now - mStart) / mDuration);
+			if (progress >= 1) {
+				mDone = true;
+			}
+			mTarget.onFadeStep(this, mCurve.getGain(mIn ? progress
+					: 1 - progress));
+		}
+	}
+
+	private static Fader sDefault;
+
+	/**
+	 * @return The fader on {@link Scheduler#getDefault()}.
+	 */
+	public static synchronized Fader getDefault() {
+		Scheduler scheduler = Scheduler.getDefault();
+		if (sDefault == null || sDefault.mScheduler != scheduler) {
+			sDefault = new Fader(scheduler);
+		}
+		return sDefault;
+	}
+
+	/**
+	 * @return {@link #LINEAR} for {@code "linear"}, otherwise
+	 *         {@link #EQUAL_POWER}.
+	 */
+	public static Curve getCurve(String name) {
+		return "linear".equals(name) ? LINEAR : EQUAL_POWER;
+	}
+
+	private final Scheduler mScheduler;
+	private final ArrayList<Fade> mFades = new ArrayList<Fade>();
+	private boolean mScheduled;
+
+	private final Runnable mStep = new Runnable() {
+
+		@Override
+		public void run() {
+			step();
+		}
+	};
+
+	public Fader(Scheduler scheduler) {
+		mScheduler = scheduler;
+	}
+
+	/**
+	 * Starts raising {@code target}'s gain from 0 to 1 over
+	 * {@code duration} milliseconds. The target should be set to
+	 * {@link Fade#getStartGain()} before it is started.
+	 */
+	public Fade fadeIn(Target target, long duration, Curve curve) {
+		return add(new Fade(target, curve, true, duration));
+	}
+
+	/**
+	 * Starts lowering {@code target}'s gain from 1 to 0 over
+	 * {@code duration} milliseconds.
+	 */
+	public Fade fadeOut(Target target, long duration, Curve curve) {
+		return add(new Fade(target, curve, false, duration));
+	}
+
+	private synchronized Fade add(Fade fade) {
+		mFades.add(fade);
+		if (!mScheduled) {
+			mScheduled = true;
+			mScheduler.postDelayed(mStep, STEP_INTERVAL);
+		}
+		return fade;
+	}
+
+	/*
+	 * Targets are called without the fader's lock held, since they take
+	 * their own locks and cancel fades while holding them.
+	 */
+	private void step() {
+		Fade[] fades;
+		synchronized (this) {
+			fades = mFades.toArray(new Fade[mFades.size()]);
+		}
+		long now = mScheduler.uptimeMillis();
+		for (Fade fade : fades) {
+			if (!fade.mDone) {
+				fade.step(now);
+			}
+		}
+		synchronized (this) {
+			for (Fade fade : fades) {
+				if (fade.mDone) {
+					mFades.remove(fade);
+				}
+			}
+			if (mFades.isEmpty()) {
+				mScheduled = false;
+			} else {
+				mScheduler.postDelayed(mStep, STEP_INTERVAL);
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * Keeps the songs around the playhead prepared in a {@link MediaPlayerPool}.
+ * <p>
+ * Every call to {@link #update(Uri, Uri[])} re-targets the lookahead: the new
+ * targets are prefetched in priority order, and preparations which were
+ * started for songs that are no longer targeted are cancelled. The
+ * lookahead never uses more than all but one of the pool's players, and
+ * never gives up the player prepared for the now playing song.
+ */
+public class Lookahead {
+
+	private final MediaPlayerPool<?> mPool;
+	private final Context mContext;
+	private final int mBudget;
+	private Set<Uri> mTargets = new HashSet<Uri>();
+
+	/**
+	 * @param songs
+	 *            The number of songs (including, if it is being prepared, the
+	 *            previous song) to keep prepared.
+	 */
+	public Lookahead(MediaPlayerPool<?> pool, Context context, int songs) {
+		mPool = pool;
+		mContext = context;
+		mBudget = Math.max(0, Math.min(songs, pool.getCapacity() - 1));
+	}
+
+	/**
+	 * @param nowPlaying
+	 *            The {@link Uri} of the now playing song, which will not be
+	 *            evicted to make room for the lookahead. May be {@code null}.
+	 * @param targets
+	 *            The {@link Uri}s to keep prepared, most important first.
+	 *            {@code null} entries are ignored.
+	 */
+	public synchronized void update(Uri nowPlaying, Uri[] targets) {
+		Set<Uri> keep = new HashSet<Uri>();
+		if (nowPlaying != null) {
+			keep.add(nowPlaying);
+		}
+		Set<Uri> wanted = new HashSet<Uri>();
+		for (Uri target : targets) {
+			if (wanted.size() >= mBudget) {
+				break;
+			}
+			if (target != null && !target.equals(nowPlaying)) {
+				wanted.add(target);
+			}
+		}
+		keep.addAll(wanted);
+
+		for (Uri target : mTargets) {
+			if (!keep.contains(target)) {
+				mPool.cancelPreparation(target);
+			}
+		}
+
+		Set<Uri> prepared = new HashSet<Uri>();
+		for (Uri target : targets) {
+			if (target != null && wanted.contains(target)
+					&& !prepared.contains(target)) {
+				if (!mPool.prefetch(mContext, target, keep)) {
+					break;
+				}
+				prepared.add(target);
+			}
+		}
+		mTargets = prepared;
+	}
+
+	/**
+	 * Cancels all outstanding preparations started by this lookahead.
+	 */
+	public synchronized void clear() {
+		for (Uri target : mTargets) {
+			mPool.cancelPreparation(target);
+		}
+		mTargets = new HashSet<Uri>();
+	}
+}
@@ -15,123 +15,1159 @@
  ******************************************************************************/
 package org.prx.playerhater.mediaplayer;
 
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnPreparedListener;
 import android.net.Uri;
 
 import java.lang.reflect.InvocationTargetException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.prx.playerhater.util.Log;
+import org.prx.playerhater.util.Scheduler;
+import org.prx.playerhater.util.Tracer;
 
-public class MediaPlayerPool<P extends SynchronousPlayer> {
+/**
+ * A fixed-capacity pool of players which keeps players prepared for recently
+ * requested {@link Uri}s around so that they can be handed out without
+ * waiting on a network prepare.
+ * <p>
+ * Players are created by a {@link PlayerFactory} the first time they are
+ * needed, up to the pool's capacity, and players which sit idle for longer
+ * than the idle timeout are released again.
+ * <p>
+ * Players which are {@link #recycle(Player)}d while still
+ * prepared are parked (paused, at their last position) under the
+ * {@link Uri} they were handed out for, so that going back to a song which
+ * was just left does not need a new prepare. Parked players are evicted
+ * just like players prepared ahead of time.
+ * <p>
+ * When every player is checked out, a request for another one may create
+ * overflow players beyond the pool's capacity, up to
+ * {@link #setMaxPlayers(int)}, and may then wait up to
+ * {@link #setExhaustionWait(long)} for a player to be recycled. Overflow
+ * players are released as soon as they are recycled. Only when both are
+ * used up does {@link #getPlayer(Context, Uri)} throw. Requests made with
+ * {@link #getPlayerAsync(Context, Uri, PlayerFuture.Callback)} never block:
+ * they wait in line for a recycled player instead, and their futures fail
+ * once the exhaustion wait has passed.
+ * <p>
+ * Under memory pressure, {@link #onTrimMemory(int)} releases idle players,
+ * then parked players, then players prepared ahead of time, as decided by
+ * the pool's {@link ShrinkPolicy}. Players which are checked out (the now
+ * playing one) are never released by the pool.
+ * <p>
+ * Prepared players are indexed by {@link Uri}, or by the key a
+ * {@link KeyCanonicalizer} gives for it, and kept in an access-ordered
+ * (least recently used first) intrusive list, so lookup, promotion and
+ * eviction are all constant time. Idle players are kept on an array-backed
+ * stack, so handing one out does not allocate.
+ * <p>
+ * An {@link EvictionPolicy} may be installed to pick which prepared player is
+ * given up when the pool is full, in which case eviction walks the (small)
+ * list of prepared players instead.
+ * <p>
+ * The pool keeps counters of how often requests are served by a prepared
+ * player and how long prepares take; see {@link #getStats()}.
+ * <p>
+ * The pool's lock only covers its bookkeeping. Setting data sources,
+ * preparing, resetting and releasing players all happen after it has been
+ * let go, and work for players being prepared ahead of time (or given up) is
+ * done on the pool's {@link Scheduler}, so a request for a player never
+ * waits behind a prefetch of some other song. Each player carries at most
+ * one piece of outstanding work, and newer work replaces older work which
+ * has not started yet, so cancelling a prefetch which is still queued costs
+ * nothing.
+ */
+public class MediaPlayerPool<P extends Player> {
 
-	private final Map<Uri, P> mMediaPlayers = new HashMap<Uri, P>();
-	private final Set<P> mIdlePlayers = new HashSet<P>();
-	private final List<Uri> mRequests = new ArrayList<Uri>();
-	private final Class<? extends P> mClass;
+	public static final int DEFAULT_CAPACITY = 3;
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000;
 
-	public static <SynchronousPlayerClass extends SynchronousPlayer> MediaPlayerPool<SynchronousPlayerClass> getInstance(Context context,
-			Class<SynchronousPlayerClass> klass) {
-		return new MediaPlayerPool<SynchronousPlayerClass>(context, klass);
+	/**
+	 * Creates the players for a pool.
+	 */
+	public interface PlayerFactory<P> {
+
+		public P newPlayer(Context context);
 	}
 
-	public MediaPlayerPool(Context context, Class<P> mediaPlayerClass) {
-		this(context, mediaPlayerClass, 3);
+	/**
+	 * Release idle players only.
+	 */
+	public static final int SHRINK_IDLE = 1;
+
+	/**
+	 * Release idle and parked players.
+	 */
+	public static final int SHRINK_PARKED = 2;
+
+	/**
+	 * Release every player which is not checked out.
+	 */
+	public static final int SHRINK_PREPARED = 3;
+
+	/**
+	 * Decides how far the pool shrinks for a memory trim level.
+	 */
+	public interface ShrinkPolicy {
+
+		/**
+		 * @param level
+		 *            A {@link ComponentCallbacks2} {@code TRIM_MEMORY_*}
+		 *            level.
+		 * @return One of {@link MediaPlayerPool#SHRINK_IDLE},
+		 *         {@link MediaPlayerPool#SHRINK_PARKED} or
+		 *         {@link MediaPlayerPool#SHRINK_PREPARED}, or 0 to leave the
+		 *         pool alone.
+		 */
+		public int getShrinkLevel(int level);
 	}
 
-	public MediaPlayerPool(Context context, Class<P> mediaPlayerClass, int size) {
-		mClass = mediaPlayerClass;
-		for (int i = 0; i < size; i++) {
+	/**
+	 * Drops idle players as soon as the system asks, parked players once
+	 * memory is getting low, and everything but the now playing player once
+	 * it is critical. Leaving the UI only costs idle players, since playback
+	 * usually carries on in the background.
+	 */
+	public static final ShrinkPolicy DEFAULT_SHRINK_POLICY = new ShrinkPolicy() {
+
+		@Override
+		@SuppressLint("InlinedApi")
+		public int getShrinkLevel(int level) {
+			if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+				return SHRINK_PREPARED;
+			} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+				return SHRINK_PARKED;
+			} else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+				return SHRINK_IDLE;
+			} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+				return SHRINK_PREPARED;
+			} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+				return SHRINK_PARKED;
+			} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+				return SHRINK_IDLE;
+			}
+			return 0;
+		}
+	};
+
+	private static class ReflectivePlayerFactory<P> implements
+			PlayerFactory<P> {
+		private final Class<? extends P> mClass;
+
+		private ReflectivePlayerFactory(Class<? extends P> klass) {
+			mClass = klass;
+		}
+
+		@Override
+		public P newPlayer(Context context) {
 			try {
-				mIdlePlayers.add(mClass.getConstructor(Context.class).newInstance(context));
+				return mClass.getConstructor(Context.class).newInstance(
+						context);
 			} catch (InstantiationException e) {
 				throw new IllegalArgumentException(e);
 			} catch (IllegalAccessException e) {
 				throw new IllegalArgumentException(e);
 			} catch (NoSuchMethodException e) {
-                throw new IllegalArgumentException(e);
-            } catch (InvocationTargetException e) {
-                throw new IllegalArgumentException(e);
-            }
-        }
+				throw new IllegalArgumentException(e);
+			} catch (InvocationTargetException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+	}
+
+	/**
+	 * Maps the {@link Uri}s players are requested for to the keys prepared
+	 * players are found by, so that different {@link Uri}s for the same
+	 * audio share one prepared player. Players are still prepared with the
+	 * {@link Uri} they were requested for.
+	 */
+	public interface KeyCanonicalizer {
+
+		/**
+		 * Called with the pool's lock held, so this must not block.
+		 * 
+		 * @return The key for {@code uri}, which is never {@code null}.
+		 */
+		public Uri getKey(Uri uri);
+	}
+
+	/**
+	 * Decides which prepared player to give up when the pool has to recycle
+	 * one for a new request.
+	 */
+	public interface EvictionPolicy {
+
+		/**
+		 * @param uri
+		 *            The {@link Uri} a prepared player is currently holding,
+		 *            as it was requested (not its canonical key).
+		 * @return A priority for evicting the player prepared for {@code uri}.
+		 *         The player with the highest priority is evicted; ties go to
+		 *         the least recently used player.
+		 */
+		public int getEvictionPriority(Uri uri);
+	}
+
+	/*
+	 * Something to do to a player once the pool's lock has been let go. A
+	 * prepare resets the player first if it needs to.
+	 */
+	private static final class Work {
+		private static final Work RESET = new Work(null, null, false);
+		private static final Work RELEASE = new Work(null, null, true);
+
+		private final Context context;
+		private final Uri uri;
+		private final boolean release;
+
+		private Work(Context context, Uri uri, boolean release) {
+			this.context = context;
+			this.uri = uri;
+			this.release = release;
+		}
+	}
+
+	private static final long NOT_PREPARING = -1;
+
+	private static final class Slot<P extends Player> implements
+			OnPreparedListener, Runnable {
+		private final P player;
+		private final MediaPlayerPoolStats stats;
+		private final Scheduler clock;
+		private final AtomicReference<Work> pending = new AtomicReference<Work>();
+		private Uri uri;
+		private Uri source;
+		private Uri checkedOutUri;
+		private boolean checkedOut;
+		private boolean idle;
+		private boolean parked;
+		private long idleSince;
+		private Slot<P> newer;
+		private Slot<P> older;
+		private volatile boolean prepared;
+		private volatile long prepareStartedAt = NOT_PREPARING;
+		private volatile PlayerFuture<P> future;
+
+		private Slot(P player, MediaPlayerPoolStats stats, Scheduler clock) {
+			this.player = player;
+			this.stats = stats;
+			this.clock = clock;
+		}
+
+		@Override
+		public void onPrepared(MediaPlayer mp) {
+			prepared = true;
+			long startedAt = prepareStartedAt;
+			if (startedAt != NOT_PREPARING) {
+				prepareStartedAt = NOT_PREPARING;
+				stats.onPrepared(clock.uptimeMillis() - startedAt);
+			}
+			PlayerFuture<P> f = future;
+			if (f != null) {
+				f.onReady();
+			}
+		}
+
+		@Override
+		public void run() {
+			runPending();
+		}
+
+		/*
+		 * Runs whatever work is outstanding for this player. Holding the
+		 * player's lock while taking the work means that a caller which finds
+		 * nothing to do has still waited for work another thread started.
+		 */
+		private void runPending() {
+			synchronized (player) {
+				Work work = pending.getAndSet(null);
+				if (work == null) {
+					return;
+				}
+				if (work.release) {
+					player.release();
+					return;
+				}
+				if (player.getState() != StatelyPlayer.IDLE) {
+					player.reset();
+				}
+				if (work.uri != null) {
+					prepareStartedAt = clock.uptimeMillis();
+					if (!player.prepare(work.context, work.uri)) {
+						prepareStartedAt = NOT_PREPARING;
+						PlayerFuture<P> f = future;
+						if (f != null) {
+							f.onFailed();
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * A request from getPlayerAsync made while every player was checked
+	 * out. It is served when a player is recycled, or fails once the
+	 * exhaustion wait has passed.
+	 */
+	private final class Waiter implements Runnable {
+		private final Context context;
+		private final Uri uri;
+		private final PlayerFuture<P> future;
+		private final long since;
+
+		private Waiter(Context context, Uri uri, PlayerFuture<P> future,
+				long since) {
+			this.context = context;
+			this.uri = uri;
+			this.future = future;
+			this.since = since;
+		}
+
+		@Override
+		public void run() {
+			giveUp(this);
+		}
+	}
+
+	private final Map<Uri, Slot<P>> mPrepared = new HashMap<Uri, Slot<P>>();
+	private final Map<P, Slot<P>> mSlots = new IdentityHashMap<P, Slot<P>>();
+	private final MediaPlayerPoolStats mStats = new MediaPlayerPoolStats();
+	private final Slot<P> mLru = new Slot<P>(null, null, null);
+	private final Object[] mIdlePlayers;
+	private final LinkedList<Waiter> mWaiting = new LinkedList<Waiter>();
+	private int mIdleCount = 0;
+	private int mPlayerCount = 0;
+	private int mMaxPlayers;
+	private long mExhaustionWait = 0;
+	private final Context mContext;
+	private final PlayerFactory<? extends P> mFactory;
+	private final Scheduler mScheduler;
+	private long mIdleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private boolean mReclaimScheduled = false;
+	private EvictionPolicy mEvictionPolicy;
+	private KeyCanonicalizer mCanonicalizer;
+	private ShrinkPolicy mShrinkPolicy = DEFAULT_SHRINK_POLICY;
+
+	private final Runnable mReclaimIdlePlayers = new Runnable() {
+
+		@Override
+		public void run() {
+			reclaimIdlePlayers();
+		}
+	};
+
+	public static <PlayerClass extends Player> MediaPlayerPool<PlayerClass> getInstance(Context context,
+			Class<PlayerClass> klass) {
+		return new MediaPlayerPool<PlayerClass>(context, klass);
+	}
+
+	public static <PlayerClass extends Player> MediaPlayerPool<PlayerClass> getInstance(Context context,
+			Class<PlayerClass> klass, int capacity) {
+		return new MediaPlayerPool<PlayerClass>(context, klass,
+				capacity);
+	}
+
+	public static <PlayerClass extends Player> MediaPlayerPool<PlayerClass> getInstance(Context context,
+			PlayerFactory<PlayerClass> factory, int capacity) {
+		return new MediaPlayerPool<PlayerClass>(context, factory,
+				capacity);
+	}
+
+	public MediaPlayerPool(Context context, Class<P> mediaPlayerClass) {
+		this(context, mediaPlayerClass, DEFAULT_CAPACITY);
+	}
+
+	public MediaPlayerPool(Context context, Class<P> mediaPlayerClass, int size) {
+		this(context, new ReflectivePlayerFactory<P>(mediaPlayerClass), size);
+	}
+
+	public MediaPlayerPool(Context context, PlayerFactory<? extends P> factory,
+			int size) {
+		this(context, factory, size, Scheduler.getDefault());
+	}
+
+	/**
+	 * @param context
+	 *            The {@link Context} players are created with.
+	 * @param factory
+	 *            Creates players as they are first needed.
+	 * @param size
+	 *            The most players this pool will hold at once.
+	 * @param scheduler
+	 *            Runs the timer which releases idle players, and background
+	 *            work on players.
+	 */
+	public MediaPlayerPool(Context context, PlayerFactory<? extends P> factory,
+			int size, Scheduler scheduler) {
+		if (size < 1) {
+			throw new IllegalArgumentException(
+					"A MediaPlayerPool needs room for at least one player, not "
+							+ size);
+		}
+		mContext = context;
+		mFactory = factory;
+		mScheduler = scheduler;
+		mLru.newer = mLru;
+		mLru.older = mLru;
+		mIdlePlayers = new Object[size];
+		mMaxPlayers = size;
+	}
+
+	public synchronized int getCapacity() {
+		return mIdlePlayers.length;
+	}
+
+	/**
+	 * Sets the most players this pool may have at once, counting overflow
+	 * players created when every player up to the pool's capacity is checked
+	 * out. Anything less than the capacity is treated as the capacity, which
+	 * is the default.
+	 */
+	public synchronized void setMaxPlayers(int maxPlayers) {
+		mMaxPlayers = Math.max(maxPlayers, mIdlePlayers.length);
+	}
+
+	/**
+	 * Sets how long, in milliseconds, a request for a player may wait for
+	 * one to be recycled once the pool can't create any more. The default is
+	 * not to wait.
+	 */
+	public synchronized void setExhaustionWait(long millis) {
+		mExhaustionWait = Math.max(0, millis);
+	}
+
+	public synchronized void setEvictionPolicy(EvictionPolicy policy) {
+		mEvictionPolicy = policy;
+	}
+
+	/**
+	 * Sets how {@link Uri}s are turned into keys for finding prepared
+	 * players. Without one, players are found by the exact {@link Uri}.
+	 * Players which are already prepared keep their current keys; see
+	 * {@link #rekey(Uri, Uri)}.
+	 */
+	public synchronized void setKeyCanonicalizer(KeyCanonicalizer canonicalizer) {
+		mCanonicalizer = canonicalizer;
+	}
+
+	/**
+	 * Tells the pool that players prepared under {@code oldKey} should now
+	 * be found under {@code newKey}, for example once a
+	 * {@link KeyCanonicalizer} has learned where a redirect leads. If a
+	 * player is already prepared under {@code newKey}, the one under
+	 * {@code oldKey} is given up.
+	 */
+	public synchronized void rekey(Uri oldKey, Uri newKey) {
+		if (oldKey == null || newKey == null || oldKey.equals(newKey)) {
+			return;
+		}
+		for (Slot<P> slot : mSlots.values()) {
+			if (oldKey.equals(slot.checkedOutUri)) {
+				slot.checkedOutUri = newKey;
+			}
+		}
+		Slot<P> slot = mPrepared.get(oldKey);
+		if (slot == null) {
+			return;
+		}
+		Uri source = slot.source;
+		boolean parked = slot.parked;
+		evict(slot);
+		if (mPrepared.containsKey(newKey)) {
+			Log.d("Giving up the duplicate player prepared for " + oldKey);
+			queue(slot, Work.RESET);
+			pushIdle(slot);
+			mScheduler.post(slot);
+		} else {
+			Log.d("Moving the player prepared for " + oldKey + " to "
+					+ newKey);
+			addPlayer(slot, newKey, source);
+			slot.parked = parked;
+		}
+	}
+
+	public synchronized void setShrinkPolicy(ShrinkPolicy policy) {
+		mShrinkPolicy = policy;
+	}
+
+	/**
+	 * Sets how long a player may sit idle before it is released. Players
+	 * are never released for being idle if {@code millis} is zero or less.
+	 */
+	public synchronized void setIdleTimeout(long millis) {
+		mIdleTimeout = millis;
+		if (mIdleTimeout > 0) {
+			scheduleReclaim();
+		} else if (mReclaimScheduled) {
+			mScheduler.removeCallbacks(mReclaimIdlePlayers);
+			mReclaimScheduled = false;
+		}
+	}
+
+	/**
+	 * @return A snapshot of this pool's counters and of how its players are
+	 *         currently being used.
+	 */
+	public synchronized MediaPlayerPoolStats getStats() {
+		return mStats.snapshot(mIdlePlayers.length, mPlayerCount,
+				mIdleCount, mPrepared.size());
+	}
+
+	/**
+	 * Zeroes this pool's counters. The current occupancy is unaffected.
+	 */
+	public void resetStats() {
+		mStats.reset();
 	}
 
 	public synchronized void release() {
-		for (SynchronousPlayer player : mIdlePlayers) {
-			player.release();
+		if (mReclaimScheduled) {
+			mScheduler.removeCallbacks(mReclaimIdlePlayers);
+			mReclaimScheduled = false;
+		}
+		releaseIdlePlayers(mIdleCount);
+		for (Waiter waiter : mWaiting) {
+			mScheduler.removeCallbacks(waiter);
+			waiter.future.onFailed();
+		}
+		mWaiting.clear();
+		while (mLru.older != mLru) {
+			Slot<P> slot = mLru.older;
+			unlink(slot);
+			mPrepared.remove(slot.uri);
+			slot.uri = null;
+			releaseSlot(slot);
+		}
+		mSlots.clear();
+		mPlayerCount = 0;
+	}
+
+	/**
+	 * Shrinks the pool as far as its {@link ShrinkPolicy} asks for
+	 * {@code level}. Call this from
+	 * {@link ComponentCallbacks2#onTrimMemory(int)}.
+	 * 
+	 * @return The number of players released.
+	 */
+	public synchronized int onTrimMemory(int level) {
+		return shrink(mShrinkPolicy.getShrinkLevel(level));
+	}
+
+	/**
+	 * Releases every player which is not checked out. Call this from
+	 * {@link android.content.ComponentCallbacks#onLowMemory()}.
+	 * 
+	 * @return The number of players released.
+	 */
+	public synchronized int onLowMemory() {
+		return shrink(SHRINK_PREPARED);
+	}
+
+	/**
+	 * @param level
+	 *            {@link #SHRINK_IDLE}, {@link #SHRINK_PARKED} or
+	 *            {@link #SHRINK_PREPARED}. Anything lower does nothing.
+	 * @return The number of players released.
+	 */
+	public synchronized int shrink(int level) {
+		if (level < SHRINK_IDLE) {
+			return 0;
 		}
-		mIdlePlayers.clear();
-		for (Uri uri : mRequests) {
-			mMediaPlayers.remove(uri).release();
+		int released = mIdleCount;
+		releaseIdlePlayers(mIdleCount);
+		if (level >= SHRINK_PARKED) {
+			Slot<P> slot = mLru.newer;
+			while (slot != mLru) {
+				Slot<P> next = slot.newer;
+				if (slot.parked || level >= SHRINK_PREPARED) {
+					Log.d("Releasing the player prepared for " + slot.uri);
+					unlink(slot);
+					mPrepared.remove(slot.uri);
+					slot.uri = null;
+					releaseSlot(slot);
+					released++;
+				}
+				slot = next;
+			}
+		}
+		if (released > 0) {
+			Log.d("Shrank the pool by " + released + " players");
+			mStats.onTrimmed(released);
+		}
+		return released;
+	}
+
+	/**
+	 * Starts preparing a player for {@code uri} in the background, giving
+	 * up other prepared players if need be. Does nothing if every player is
+	 * checked out.
+	 */
+	public void prepare(Context context, Uri uri) {
+		if (uri == null) {
+			throw new IllegalArgumentException(
+					"can't prepare a player for a null uri!");
 		}
-		mRequests.clear();
-		for (SynchronousPlayer player : mMediaPlayers.values()) {
-			player.release();
+		synchronized (this) {
+			Uri key = getKey(uri);
+			Slot<P> slot = mPrepared.get(key);
+			if (slot == null) {
+				slot = getSlot(false);
+				if (slot == null) {
+					Log.d("No room to prepare " + uri);
+					return;
+				}
+				Log.d("Preparing " + slot.player + " for " + uri);
+				queue(slot, new Work(context, uri, false));
+				addPlayer(slot, key, uri);
+				mScheduler.post(slot);
+			} else {
+				promote(slot);
+			}
 		}
-		mMediaPlayers.clear();
 	}
 
-	public synchronized void prepare(Context context, Uri uri) {
+	/**
+	 * Starts preparing a player for {@code uri} in the background if that
+	 * can be done without giving up a player prepared for any of the
+	 * {@link Uri}s in {@code keep}.
+	 * 
+	 * @return {@code true} if a player is now prepared or preparing for
+	 *         {@code uri}, {@code false} if there was no room for it.
+	 */
+	public synchronized boolean prefetch(Context context, Uri uri, Set<Uri> keep) {
 		if (uri == null) {
 			throw new IllegalArgumentException(
 					"can't prepare a player for a null uri!");
 		}
-		if (!mMediaPlayers.containsKey(uri)) {
-			P player = getPlayer();
-			Log.d("Preparing " + player + " for " + uri);
-			player.prepare(context, uri);
-			addPlayer(player, uri);
+		Uri key = getKey(uri);
+		Slot<P> slot = mPrepared.get(key);
+		if (slot != null) {
+			promote(slot);
+			return true;
+		}
+		if (mIdleCount > 0) {
+			slot = popIdle();
+		} else if (mPlayerCount < mIdlePlayers.length) {
+			slot = newSlot();
+		} else {
+			slot = selectVictim(getKeys(keep));
+			if (slot == null) {
+				return false;
+			}
+			Log.d("Recycling the player that is prepared for " + slot.uri);
+			evict(slot);
+			mStats.onEviction();
+		}
+		Log.d("Prefetching " + uri + " into " + slot.player);
+		queue(slot, new Work(context, uri, false));
+		addPlayer(slot, key, uri);
+		mScheduler.post(slot);
+		return true;
+	}
+
+	/**
+	 * Gives up the player being prepared for {@code uri} if it has not
+	 * finished preparing yet. Players which are already prepared (or parked)
+	 * are left alone so that they can still be used. If the prepare has not
+	 * been started yet, it never will be.
+	 */
+	public synchronized void cancelPreparation(Uri uri) {
+		Slot<P> slot = mPrepared.get(getKey(uri));
+		if (slot != null && !slot.prepared) {
+			Log.d("Cancelling preparation of " + uri);
+			evict(slot);
+			queue(slot, Work.RESET);
+			pushIdle(slot);
+			mScheduler.post(slot);
 		}
 	}
 
-	public synchronized P getPlayer(Context context, Uri uri) {
+	/**
+	 * Checks out a player for {@code uri}, which is prepared (or at least
+	 * has had its data source set) by the time this returns. This waits only
+	 * for work on the player it returns.
+	 */
+	public P getPlayer(Context context, Uri uri) {
 		Log.d("Getting player for " + uri);
-		if (mMediaPlayers.containsKey(uri)) {
-			mRequests.remove(uri);
-			Log.d("Found one (" + mMediaPlayers.get(uri) + ")");
-			return mMediaPlayers.remove(uri);
+		Tracer.Span span = Tracer.begin("pool.acquire");
+		try {
+			Slot<P> slot = checkOut(context, uri, true);
+			slot.runPending();
+			return slot.player;
+		} finally {
+			span.end();
+		}
+	}
+
+	/**
+	 * Checks out a player for {@code uri} without waiting for any work on
+	 * it. The returned future completes, and {@code callback} (which may be
+	 * {@code null}) is called, once the player is prepared.
+	 * <p>
+	 * If every player is checked out, this doesn't wait either: the request
+	 * gets the next player to be recycled, and its future fails if none is
+	 * within the exhaustion wait (straight away if there is none).
+	 */
+	public PlayerFuture<P> getPlayerAsync(Context context, Uri uri,
+			PlayerFuture.Callback<P> callback) {
+		Log.d("Getting player for " + uri + " asynchronously");
+		PlayerFuture<P> future = new PlayerFuture<P>(this, null, callback,
+				mScheduler);
+		boolean ready = false;
+		boolean failed = false;
+		synchronized (this) {
+			Slot<P> slot = checkOut(context, uri, false);
+			if (slot != null) {
+				ready = handOut(slot, future);
+			} else if (mExhaustionWait > 0) {
+				Log.d("Waiting up to " + mExhaustionWait + "ms for a player");
+				mStats.onWait();
+				Waiter waiter = new Waiter(context, uri, future,
+						mScheduler.uptimeMillis());
+				mWaiting.add(waiter);
+				mScheduler.postDelayed(waiter, mExhaustionWait);
+			} else {
+				mStats.onMiss();
+				mStats.onExhausted();
+				failed = true;
+			}
+		}
+		if (ready) {
+			future.onReady();
+		} else if (failed) {
+			future.onFailed();
+		}
+		return future;
+	}
+
+	/*
+	 * Gives a checked out player to an asynchronous request, and starts any
+	 * work on it. Returns whether it is already prepared.
+	 */
+	private boolean handOut(Slot<P> slot, PlayerFuture<P> future) {
+		future.onCheckedOut(slot.player);
+		slot.future = future;
+		if (slot.prepared) {
+			return true;
+		}
+		mScheduler.post(slot);
+		return false;
+	}
+
+	/*
+	 * Hands players which have been recycled to the asynchronous requests
+	 * waiting for them, oldest first.
+	 */
+	private void serveWaiting() {
+		while (!mWaiting.isEmpty()) {
+			Waiter waiter = mWaiting.getFirst();
+			Slot<P> slot = checkOut(waiter.context, waiter.uri, false);
+			if (slot == null) {
+				return;
+			}
+			mWaiting.removeFirst();
+			mScheduler.removeCallbacks(waiter);
+			mStats.onWaited(mScheduler.uptimeMillis() - waiter.since);
+			if (handOut(slot, waiter.future)) {
+				waiter.future.onReady();
+			}
+		}
+	}
+
+	private void giveUp(Waiter waiter) {
+		synchronized (this) {
+			if (!mWaiting.remove(waiter)) {
+				return;
+			}
+			mStats.onMiss();
+			mStats.onWaited(mScheduler.uptimeMillis() - waiter.since);
+			mStats.onExhausted();
+		}
+		Log.d("Gave up waiting for a player for " + waiter.uri);
+		waiter.future.onFailed();
+	}
+
+	/*
+	 * Called when a future from getPlayerAsync is cancelled before it
+	 * completes.
+	 */
+	void cancel(PlayerFuture<P> future) {
+		synchronized (this) {
+			Iterator<Waiter> waiters = mWaiting.iterator();
+			while (waiters.hasNext()) {
+				Waiter waiter = waiters.next();
+				if (waiter.future == future) {
+					waiters.remove();
+					mScheduler.removeCallbacks(waiter);
+					return;
+				}
+			}
+		}
+		recycle(future.getPlayer());
+	}
+
+	/*
+	 * Returns null, rather than waiting, if wait is false and every player is
+	 * checked out.
+	 */
+	private synchronized Slot<P> checkOut(Context context, Uri uri,
+			boolean wait) {
+		Uri key = getKey(uri);
+		Slot<P> slot = mPrepared.remove(key);
+		if (slot != null) {
+			unlink(slot);
+			slot.uri = null;
+			slot.parked = false;
+			mStats.onHit();
+			Log.d("Found one (" + slot.player + ")");
 		} else {
-			P player = getPlayer();
-			player.prepare(context, uri);
-			return player;
+			slot = getSlot(true);
+			if (slot == null && !wait) {
+				return null;
+			}
+			mStats.onMiss();
+			if (slot == null) {
+				slot = awaitSlot();
+			}
+			queue(slot, new Work(context, uri, false));
+			slot.source = uri;
 		}
+		slot.checkedOut = true;
+		slot.checkedOutUri = key;
+		return slot;
 	}
 
-	public synchronized void recycle(P player) {
-		if (player != null && player.getState() != StatelyPlayer.END) {
-			player.reset();
-			mIdlePlayers.add(player);
+	/**
+	 * Returns a player handed out by {@link #getPlayer(Context, Uri)} to the
+	 * pool. If it is still prepared it is paused and parked so that it can
+	 * be handed out again for the same {@link Uri}; otherwise it is reset in
+	 * the background.
+	 */
+	public void recycle(P player) {
+		if (player == null) {
+			return;
+		}
+		Slot<P> slot;
+		Uri uri;
+		synchronized (this) {
+			slot = mSlots.get(player);
+			if (slot == null || !slot.checkedOut) {
+				return;
+			}
+			slot.checkedOut = false;
+			slot.future = null;
+			uri = slot.checkedOutUri;
+			slot.checkedOutUri = null;
+		}
+		int state = player.getState();
+		boolean park = uri != null && isPrepared(state);
+		if (park && player.isPlaying()) {
+			player.pause();
+		}
+		synchronized (this) {
+			if (mSlots.get(player) != slot) {
+				// The pool was released while we weren't looking.
+				if (state != StatelyPlayer.END) {
+					player.release();
+				}
+			} else if (state == StatelyPlayer.END) {
+				mSlots.remove(player);
+				mPlayerCount--;
+			} else if (mPlayerCount > mIdlePlayers.length) {
+				Log.d("Releasing overflow player (" + player + ")");
+				releaseSlot(slot);
+			} else if (park) {
+				Log.d("Parking " + player + " for " + uri);
+				mStats.onParked();
+				addPlayer(slot, uri, slot.source);
+				slot.parked = true;
+			} else {
+				queue(slot, Work.RESET);
+				pushIdle(slot);
+				mScheduler.post(slot);
+			}
+			serveWaiting();
+			notifyAll();
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private synchronized P getPlayer() {
-		if (mIdlePlayers.size() > 0) {
-			P player = (P) mIdlePlayers.toArray()[0];
-			mIdlePlayers.remove(player);
-			Log.d("Getting idle player (" + player + ")");
-			return player;
-		} else if (mRequests.size() > 0) {
-			Uri leastRecentReq = mRequests.remove(mRequests.size() - 1);
-			Log.d("Recycling the player that is prepared for " + leastRecentReq);
-			P player = mMediaPlayers.remove(leastRecentReq);
-			Log.d("Player: " + player);
-			player.reset();
-			return player;
+	private static boolean isPrepared(int state) {
+		switch (state) {
+		case StatelyPlayer.PREPARED:
+		case StatelyPlayer.STARTED:
+		case StatelyPlayer.PAUSED:
+		case StatelyPlayer.PLAYBACK_COMPLETED:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/*
+	 * Hands work to a player. The caller runs it, or posts the slot to the
+	 * scheduler, once it has let go of the pool's lock.
+	 */
+	private void queue(Slot<P> slot, Work work) {
+		slot.prepared = false;
+		slot.prepareStartedAt = NOT_PREPARING;
+		slot.pending.set(work);
+	}
+
+	private Slot<P> getSlot(boolean overflow) {
+		if (mIdleCount > 0) {
+			Slot<P> slot = popIdle();
+			Log.d("Getting idle player (" + slot.player + ")");
+			return slot;
+		} else if (mPlayerCount < mIdlePlayers.length) {
+			Slot<P> slot = newSlot();
+			Log.d("Created player (" + slot.player + ")");
+			return slot;
+		} else if (mLru.older != mLru) {
+			Slot<P> victim = selectVictim(null);
+			Log.d("Recycling the player that is prepared for " + victim.uri);
+			evict(victim);
+			mStats.onEviction();
+			Log.d("Player: " + victim.player);
+			return victim;
+		} else if (overflow && mPlayerCount < mMaxPlayers) {
+			Slot<P> slot = newSlot();
+			Log.d("Created overflow player (" + slot.player + ")");
+			mStats.onOverflow();
+			return slot;
 		} else {
+			return null;
+		}
+	}
+
+	/*
+	 * Waits, with the pool's lock let go, for a player to be recycled or
+	 * released. Gives up with an IllegalStateException once the exhaustion
+	 * wait has passed.
+	 */
+	private Slot<P> awaitSlot() {
+		long started = mScheduler.uptimeMillis();
+		long remaining = mExhaustionWait;
+		Slot<P> slot = null;
+		boolean interrupted = false;
+		if (remaining > 0) {
+			Log.d("Waiting up to " + remaining + "ms for a player");
+			mStats.onWait();
+		}
+		while (remaining > 0) {
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+			slot = getSlot(true);
+			if (slot != null) {
+				break;
+			}
+			remaining = mExhaustionWait
+					- (mScheduler.uptimeMillis() - started);
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (mExhaustionWait > 0) {
+			mStats.onWaited(mScheduler.uptimeMillis() - started);
+		}
+		if (slot == null) {
+			mStats.onExhausted();
 			throw new IllegalStateException(
 					"MediaPlayer resources exhausted. Are you sure you're #recycle()ing on time?");
 		}
+		return slot;
+	}
+
+	private Slot<P> selectVictim(Set<Uri> keep) {
+		Slot<P> victim = null;
+		int highest = Integer.MIN_VALUE;
+		for (Slot<P> slot = mLru.newer; slot != mLru; slot = slot.newer) {
+			if (keep != null && keep.contains(slot.uri)) {
+				continue;
+			}
+			if (mEvictionPolicy == null) {
+				return slot;
+			}
+			int priority = mEvictionPolicy.getEvictionPriority(slot.source);
+			if (victim == null || priority > highest) {
+				highest = priority;
+				victim = slot;
+			}
+		}
+		return victim;
+	}
+
+	private Slot<P> newSlot() {
+		P player = mFactory.newPlayer(mContext);
+		Slot<P> slot = new Slot<P>(player, mStats, mScheduler);
+		player.setOnPreparedListener(slot);
+		mSlots.put(player, slot);
+		mPlayerCount++;
+		mStats.onCreated();
+		return slot;
+	}
+
+	/*
+	 * Idle players are pushed onto the top of the stack as they become idle,
+	 * so the ones which have been idle longest are always at the bottom.
+	 */
+	private synchronized void reclaimIdlePlayers() {
+		mReclaimScheduled = false;
+		if (mIdleTimeout <= 0) {
+			return;
+		}
+		long now = mScheduler.uptimeMillis();
+		int expired = 0;
+		while (expired < mIdleCount
+				&& now - idleSlot(expired).idleSince >= mIdleTimeout) {
+			mStats.onReclaimed();
+			expired++;
+		}
+		releaseIdlePlayers(expired);
+		scheduleReclaim();
+	}
+
+	/*
+	 * Releases the count players which have been idle longest.
+	 */
+	private void releaseIdlePlayers(int count) {
+		if (count == 0) {
+			return;
+		}
+		for (int i = 0; i < count; i++) {
+			Slot<P> slot = idleSlot(i);
+			Log.d("Releasing idle player (" + slot.player + ")");
+			releaseSlot(slot);
+		}
+		System.arraycopy(mIdlePlayers, count, mIdlePlayers, 0, mIdleCount
+				- count);
+		for (int i = mIdleCount - count; i < mIdleCount; i++) {
+			mIdlePlayers[i] = null;
+		}
+		mIdleCount -= count;
+	}
+
+	private void releaseSlot(Slot<P> slot) {
+		mSlots.remove(slot.player);
+		mPlayerCount--;
+		queue(slot, Work.RELEASE);
+		mScheduler.post(slot);
+		notifyAll();
+	}
+
+	private void scheduleReclaim() {
+		if (mReclaimScheduled || mIdleTimeout <= 0 || mIdleCount == 0) {
+			return;
+		}
+		long delay = idleSlot(0).idleSince + mIdleTimeout
+				- mScheduler.uptimeMillis();
+		mScheduler.postDelayed(mReclaimIdlePlayers, Math.max(0, delay));
+		mReclaimScheduled = true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Slot<P> idleSlot(int index) {
+		return (Slot<P>) mIdlePlayers[index];
+	}
+
+	/*
+	 * Takes a slot out of the prepared players. Whatever is queued for it
+	 * next resets the player.
+	 */
+	private void evict(Slot<P> slot) {
+		unlink(slot);
+		mPrepared.remove(slot.uri);
+		slot.uri = null;
+		slot.source = null;
+		slot.parked = false;
+	}
+
+	private void addPlayer(Slot<P> slot, Uri key, Uri source) {
+		Slot<P> previous = mPrepared.put(key, slot);
+		if (previous != null && previous != slot) {
+			unlink(previous);
+			previous.uri = null;
+			previous.source = null;
+			previous.parked = false;
+			queue(previous, Work.RESET);
+			pushIdle(previous);
+			mScheduler.post(previous);
+		}
+		slot.uri = key;
+		slot.source = source;
+		promote(slot);
+	}
+
+	private Uri getKey(Uri uri) {
+		return mCanonicalizer == null ? uri : mCanonicalizer.getKey(uri);
+	}
+
+	private Set<Uri> getKeys(Set<Uri> uris) {
+		if (mCanonicalizer == null || uris == null) {
+			return uris;
+		}
+		Set<Uri> keys = new HashSet<Uri>();
+		for (Uri uri : uris) {
+			keys.add(mCanonicalizer.getKey(uri));
+		}
+		return keys;
+	}
+
+	/*
+	 * The list is circular around mLru: mLru.newer is the least recently used
+	 * slot and mLru.older is the most recently used one.
+	 */
+	private void promote(Slot<P> slot) {
+		if (slot.older != null) {
+			unlink(slot);
+		}
+		slot.newer = mLru;
+		slot.older = mLru.older;
+		mLru.older.newer = slot;
+		mLru.older = slot;
+	}
+
+	private void unlink(Slot<P> slot) {
+		slot.older.newer = slot.newer;
+		slot.newer.older = slot.older;
+		slot.older = null;
+		slot.newer = null;
+	}
+
+	/*
+	 * Idle players never outnumber the pool's capacity: once there are
+	 * overflow players, players which would go idle are released instead.
+	 */
+	private void pushIdle(Slot<P> slot) {
+		if (mPlayerCount > mIdlePlayers.length) {
+			Log.d("Releasing overflow player (" + slot.player + ")");
+			releaseSlot(slot);
+			return;
+		}
+		slot.idle = true;
+		slot.idleSince = mScheduler.uptimeMillis();
+		mIdlePlayers[mIdleCount++] = slot;
+		scheduleReclaim();
 	}
 
-	private synchronized void addPlayer(P player, Uri uri) {
-		mRequests.remove(uri);
-		mRequests.add(0, uri);
-		mMediaPlayers.put(uri, player);
+	private Slot<P> popIdle() {
+		Slot<P> slot = idleSlot(--mIdleCount);
+		mIdlePlayers[mIdleCount] = null;
+		slot.idle = false;
+		return slot;
 	}
 }
@@ -0,0 +1,334 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import java.util.Arrays;
+
+/**
+ * Counters describing how well a {@link MediaPlayerPool} is doing.
+ * <p>
+ * Instances returned by {@link MediaPlayerPool#getStats()} are snapshots and
+ * will not change after they are returned.
+ */
+public class MediaPlayerPoolStats {
+
+	/**
+	 * The upper bounds, in milliseconds, of the buckets in the prepare latency
+	 * histogram. The histogram has one more bucket than this array for
+	 * latencies above the last bound.
+	 */
+	public static final long[] PREPARE_LATENCY_BUCKETS = { 100, 250, 500,
+			1000, 2000, 5000, 10000 };
+
+	private long mHits;
+	private long mMisses;
+	private long mEvictions;
+	private long mExhaustions;
+	private long mOverflows;
+	private long mWaits;
+	private long mWaitTime;
+	private long mCreations;
+	private long mReclaims;
+	private long mParks;
+	private long mTrimmed;
+	private long mPrepares;
+	private long mPrepareTime;
+	private long mMaxPrepareTime;
+	private final long[] mPrepareLatencies;
+
+	private int mCapacity;
+	private int mPlayers;
+	private int mIdlePlayers;
+	private int mPreparedPlayers;
+	private int mCheckedOutPlayers;
+
+	MediaPlayerPoolStats() {
+		mPrepareLatencies = new long[PREPARE_LATENCY_BUCKETS.length + 1];
+	}
+
+	private MediaPlayerPoolStats(MediaPlayerPoolStats other) {
+		mHits = other.mHits;
+		mMisses = other.mMisses;
+		mEvictions = other.mEvictions;
+		mExhaustions = other.mExhaustions;
+		mOverflows = other.mOverflows;
+		mWaits = other.mWaits;
+		mWaitTime = other.mWaitTime;
+		mCreations = other.mCreations;
+		mReclaims = other.mReclaims;
+		mParks = other.mParks;
+		mTrimmed = other.mTrimmed;
+		mPrepares = other.mPrepares;
+		mPrepareTime = other.mPrepareTime;
+		mMaxPrepareTime = other.mMaxPrepareTime;
+		mPrepareLatencies = other.mPrepareLatencies.clone();
+	}
+
+	synchronized void onHit() {
+		mHits++;
+	}
+
+	synchronized void onMiss() {
+		mMisses++;
+	}
+
+	synchronized void onEviction() {
+		mEvictions++;
+	}
+
+	synchronized void onExhausted() {
+		mExhaustions++;
+	}
+
+	synchronized void onOverflow() {
+		mOverflows++;
+	}
+
+	synchronized void onWait() {
+		mWaits++;
+	}
+
+	synchronized void onWaited(long time) {
+		mWaitTime += time;
+	}
+
+	synchronized void onCreated() {
+		mCreations++;
+	}
+
+	synchronized void onReclaimed() {
+		mReclaims++;
+	}
+
+	synchronized void onParked() {
+		mParks++;
+	}
+
+	synchronized void onTrimmed(int players) {
+		mTrimmed += players;
+	}
+
+	synchronized void onPrepared(long latency) {
+		mPrepares++;
+		mPrepareTime += latency;
+		mMaxPrepareTime = Math.max(mMaxPrepareTime, latency);
+		int bucket = 0;
+		while (bucket < PREPARE_LATENCY_BUCKETS.length
+				&& latency > PREPARE_LATENCY_BUCKETS[bucket]) {
+			bucket++;
+		}
+		mPrepareLatencies[bucket]++;
+	}
+
+	synchronized void reset() {
+		mHits = 0;
+		mMisses = 0;
+		mEvictions = 0;
+		mExhaustions = 0;
+		mOverflows = 0;
+		mWaits = 0;
+		mWaitTime = 0;
+		mCreations = 0;
+		mReclaims = 0;
+		mParks = 0;
+		mTrimmed = 0;
+		mPrepares = 0;
+		mPrepareTime = 0;
+		mMaxPrepareTime = 0;
+		Arrays.fill(mPrepareLatencies, 0);
+	}
+
+	synchronized MediaPlayerPoolStats snapshot(int capacity, int players,
+			int idle, int prepared) {
+		MediaPlayerPoolStats snapshot = new MediaPlayerPoolStats(this);
+		snapshot.mCapacity = capacity;
+		snapshot.mPlayers = players;
+		snapshot.mIdlePlayers = idle;
+		snapshot.mPreparedPlayers = prepared;
+		snapshot.mCheckedOutPlayers = players - idle - prepared;
+		return snapshot;
+	}
+
+	/**
+	 * @return The number of requests for a player which were served by a
+	 *         player already prepared for the requested {@link android.net.Uri}
+	 */
+	public long getHits() {
+		return mHits;
+	}
+
+	/**
+	 * @return The number of requests for a player which had to start a cold
+	 *         prepare.
+	 */
+	public long getMisses() {
+		return mMisses;
+	}
+
+	/**
+	 * @return The fraction of requests which were hits, or 0 if there have
+	 *         been no requests.
+	 */
+	public float getHitRate() {
+		long requests = mHits + mMisses;
+		return requests == 0 ? 0 : (float) mHits / requests;
+	}
+
+	/**
+	 * @return The number of times a player prepared for one
+	 *         {@link android.net.Uri} was reset so that it could be used for
+	 *         another.
+	 */
+	public long getEvictions() {
+		return mEvictions;
+	}
+
+	/**
+	 * @return The number of requests which could not be served because every
+	 *         player was checked out, no overflow player could be created and
+	 *         none was recycled in time.
+	 */
+	public long getExhaustions() {
+		return mExhaustions;
+	}
+
+	/**
+	 * @return The number of players created beyond the pool's capacity
+	 *         because every player was checked out.
+	 */
+	public long getOverflows() {
+		return mOverflows;
+	}
+
+	/**
+	 * @return The number of requests which had to wait for a player to be
+	 *         recycled.
+	 */
+	public long getWaits() {
+		return mWaits;
+	}
+
+	/**
+	 * @return The total time, in milliseconds, requests have spent waiting
+	 *         for a player to be recycled.
+	 */
+	public long getWaitTime() {
+		return mWaitTime;
+	}
+
+	/**
+	 * @return The number of players the pool has created.
+	 */
+	public long getCreations() {
+		return mCreations;
+	}
+
+	/**
+	 * @return The number of players the pool has released after they sat
+	 *         idle for too long.
+	 */
+	public long getReclaims() {
+		return mReclaims;
+	}
+
+	/**
+	 * @return The number of players which were parked, still prepared, when
+	 *         they were recycled.
+	 */
+	public long getParks() {
+		return mParks;
+	}
+
+	/**
+	 * @return The number of players the pool has released because memory
+	 *         was running low.
+	 */
+	public long getTrimmed() {
+		return mTrimmed;
+	}
+
+	/**
+	 * @return The number of prepares which have completed.
+	 */
+	public long getPrepares() {
+		return mPrepares;
+	}
+
+	/**
+	 * @return The mean time, in milliseconds, from starting a prepare to the
+	 *         player being prepared.
+	 */
+	public long getMeanPrepareLatency() {
+		return mPrepares == 0 ? 0 : mPrepareTime / mPrepares;
+	}
+
+	/**
+	 * @return The longest time, in milliseconds, from starting a prepare to
+	 *         the player being prepared.
+	 */
+	public long getMaxPrepareLatency() {
+		return mMaxPrepareTime;
+	}
+
+	/**
+	 * @return The number of prepares which fell into each bucket of
+	 *         {@link #PREPARE_LATENCY_BUCKETS}, followed by the number which
+	 *         took longer than the last bucket.
+	 */
+	public long[] getPrepareLatencyHistogram() {
+		return mPrepareLatencies.clone();
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * @return The number of players which currently exist. This is only
+	 *         more than {@link #getCapacity()} while overflow players are
+	 *         checked out.
+	 */
+	public int getPlayers() {
+		return mPlayers;
+	}
+
+	public int getIdlePlayers() {
+		return mIdlePlayers;
+	}
+
+	public int getPreparedPlayers() {
+		return mPreparedPlayers;
+	}
+
+	public int getCheckedOutPlayers() {
+		return mCheckedOutPlayers;
+	}
+
+	@Override
+	public String toString() {
+		return "MediaPlayerPoolStats [hits=" + mHits + ", misses=" + mMisses
+				+ ", evictions=" + mEvictions + ", exhaustions="
+				+ mExhaustions + ", overflows=" + mOverflows + ", waits="
+				+ mWaits + ", waitTime=" + mWaitTime + ", creations=" + mCreations
+				+ ", reclaims=" + mReclaims + ", parks=" + mParks
+				+ ", trimmed=" + mTrimmed + ", prepares=" + mPrepares
+				+ ", meanPrepareLatency=" + getMeanPrepareLatency()
+				+ ", maxPrepareLatency=" + mMaxPrepareTime + ", players="
+				+ mPlayers + ", idle="
+				+ mIdlePlayers + ", prepared=" + mPreparedPlayers
+				+ ", checkedOut=" + mCheckedOutPlayers + "]";
+	}
+}
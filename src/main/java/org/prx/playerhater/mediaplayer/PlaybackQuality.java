@@ -0,0 +1,372 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+/**
+ * How playback of one song went: how long it took for audio to start, how
+ * often and for how long it stalled to rebuffer, how long seeks took, how
+ * the buffer filled over time and how often it had to be recovered from an
+ * error.
+ * <p>
+ * Instances returned by {@link StatelyPlayer#getPlaybackQuality()} are
+ * snapshots and will not change after they are returned.
+ */
+public class PlaybackQuality {
+
+	/**
+	 * The most points kept in the buffered percentage curve. Points are only
+	 * recorded when the percentage moves by at least
+	 * {@link #BUFFERED_STEP}, so this is rarely reached.
+	 */
+	public static final int MAX_BUFFERED_POINTS = 32;
+
+	/**
+	 * The smallest change, in percent, which adds a point to the buffered
+	 * percentage curve.
+	 */
+	public static final int BUFFERED_STEP = 5;
+
+	private static final String TIME_TO_FIRST_AUDIO = "time_to_first_audio";
+	private static final String REBUFFERS = "rebuffers";
+	private static final String STALL_TIME = "stall_time";
+	private static final String SEEKS = "seeks";
+	private static final String SEEK_TIME = "seek_time";
+	private static final String MAX_SEEK_TIME = "max_seek_time";
+	private static final String BUFFERED_TIMES = "buffered_times";
+	private static final String BUFFERED_PERCENTS = "buffered_percents";
+	private static final String RETRIES = "retries";
+	private static final String RECOVERIES = "recoveries";
+	private static final String RECOVERY_TIME = "recovery_time";
+	private static final String MAX_RECOVERY_TIME = "max_recovery_time";
+
+	private long mStartedAt;
+	private long mRequestedAt = -1;
+	private long mTimeToFirstAudio = -1;
+	private boolean mStarted;
+	private int mRebuffers;
+	private long mStallTime;
+	private long mStallStartedAt = -1;
+	private int mSeeks;
+	private long mSeekTime;
+	private long mMaxSeekTime;
+	private long mSeekStartedAt = -1;
+	private long[] mBufferedTimes = new long[MAX_BUFFERED_POINTS];
+	private int[] mBufferedPercents = new int[MAX_BUFFERED_POINTS];
+	private int mBufferedPoints;
+	private int mRetries;
+	private int mRecoveries;
+	private long mRecoveryTime;
+	private long mMaxRecoveryTime;
+	private long mErrorAt = -1;
+
+	PlaybackQuality() {
+		mStartedAt = now();
+	}
+
+	private PlaybackQuality(PlaybackQuality other) {
+		long now = now();
+		mTimeToFirstAudio = other.mTimeToFirstAudio;
+		mRebuffers = other.mRebuffers;
+		mStallTime = other.mStallTime;
+		if (other.mStallStartedAt != -1) {
+			mStallTime += now - other.mStallStartedAt;
+		}
+		mSeeks = other.mSeeks;
+		mSeekTime = other.mSeekTime;
+		mMaxSeekTime = other.mMaxSeekTime;
+		mBufferedPoints = other.mBufferedPoints;
+		mBufferedTimes = new long[mBufferedPoints];
+		mBufferedPercents = new int[mBufferedPoints];
+		System.arraycopy(other.mBufferedTimes, 0, mBufferedTimes, 0,
+				mBufferedPoints);
+		System.arraycopy(other.mBufferedPercents, 0, mBufferedPercents, 0,
+				mBufferedPoints);
+		mRetries = other.mRetries;
+		mRecoveries = other.mRecoveries;
+		mRecoveryTime = other.mRecoveryTime;
+		mMaxRecoveryTime = other.mMaxRecoveryTime;
+	}
+
+	private static long now() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	/*
+	 * Everything starts over when the player is given a new data source.
+	 */
+	synchronized void reset() {
+		mStartedAt = now();
+		mRequestedAt = -1;
+		mTimeToFirstAudio = -1;
+		mStarted = false;
+		mRebuffers = 0;
+		mStallTime = 0;
+		mStallStartedAt = -1;
+		mSeeks = 0;
+		mSeekTime = 0;
+		mMaxSeekTime = 0;
+		mSeekStartedAt = -1;
+		mBufferedPoints = 0;
+		mRetries = 0;
+		mRecoveries = 0;
+		mRecoveryTime = 0;
+		mMaxRecoveryTime = 0;
+		mErrorAt = -1;
+	}
+
+	synchronized void onPlayRequested() {
+		if (mRequestedAt == -1 && mTimeToFirstAudio == -1) {
+			mRequestedAt = now();
+			if (mStarted) {
+				// Already playing, as a player handed off to is.
+				mTimeToFirstAudio = 0;
+			}
+		}
+	}
+
+	synchronized void onStarted() {
+		// A stall cut short by loading the song again ends when it plays.
+		onStallEnded();
+		if (!mStarted) {
+			mStarted = true;
+			if (mRequestedAt != -1) {
+				mTimeToFirstAudio = now() - mRequestedAt;
+			}
+		}
+		if (mErrorAt != -1) {
+			long recoveryTime = now() - mErrorAt;
+			mErrorAt = -1;
+			mRecoveries++;
+			mRecoveryTime += recoveryTime;
+			mMaxRecoveryTime = Math.max(mMaxRecoveryTime, recoveryTime);
+		}
+	}
+
+	synchronized void onError() {
+		onStallEnded();
+		if (mErrorAt == -1) {
+			mErrorAt = now();
+		}
+	}
+
+	synchronized void onRetry() {
+		mRetries++;
+	}
+
+	synchronized void onStallStarted() {
+		if (mStarted && mStallStartedAt == -1) {
+			mRebuffers++;
+			mStallStartedAt = now();
+		}
+	}
+
+	synchronized void onStallEnded() {
+		if (mStallStartedAt != -1) {
+			mStallTime += now() - mStallStartedAt;
+			mStallStartedAt = -1;
+		}
+	}
+
+	synchronized void onSeekStarted() {
+		if (mSeekStartedAt == -1) {
+			mSeekStartedAt = now();
+		}
+	}
+
+	synchronized void onSeekCompleted() {
+		if (mSeekStartedAt != -1) {
+			long latency = now() - mSeekStartedAt;
+			mSeekStartedAt = -1;
+			mSeeks++;
+			mSeekTime += latency;
+			mMaxSeekTime = Math.max(mMaxSeekTime, latency);
+		}
+	}
+
+	synchronized void onBufferingUpdate(int percent) {
+		if (mBufferedPoints == MAX_BUFFERED_POINTS) {
+			return;
+		}
+		if (mBufferedPoints > 0) {
+			int last = mBufferedPercents[mBufferedPoints - 1];
+			if (Math.abs(percent - last) < BUFFERED_STEP
+					&& !(percent == 100 && last != 100)) {
+				return;
+			}
+		}
+		mBufferedTimes[mBufferedPoints] = now() - mStartedAt;
+		mBufferedPercents[mBufferedPoints] = percent;
+		mBufferedPoints++;
+	}
+
+	synchronized PlaybackQuality snapshot() {
+		return new PlaybackQuality(this);
+	}
+
+	/**
+	 * @return The time, in milliseconds, from the song being asked to play
+	 *         to its audio starting, or -1 if it hasn't started yet.
+	 */
+	public long getTimeToFirstAudio() {
+		return mTimeToFirstAudio;
+	}
+
+	/**
+	 * @return The number of times playback stalled to buffer after it had
+	 *         started.
+	 */
+	public int getRebuffers() {
+		return mRebuffers;
+	}
+
+	/**
+	 * @return The total time, in milliseconds, spent stalled, including any
+	 *         stall still going on.
+	 */
+	public long getStallTime() {
+		return mStallTime;
+	}
+
+	/**
+	 * @return The number of seeks which have completed.
+	 */
+	public int getSeeks() {
+		return mSeeks;
+	}
+
+	/**
+	 * @return The total time, in milliseconds, spent waiting for seeks.
+	 */
+	public long getSeekTime() {
+		return mSeekTime;
+	}
+
+	/**
+	 * @return The longest time, in milliseconds, any seek took.
+	 */
+	public long getMaxSeekTime() {
+		return mMaxSeekTime;
+	}
+
+	/**
+	 * @return The number of times the song was loaded again after an error.
+	 */
+	public int getRetries() {
+		return mRetries;
+	}
+
+	/**
+	 * @return The number of times audio started again after an error.
+	 */
+	public int getRecoveries() {
+		return mRecoveries;
+	}
+
+	/**
+	 * @return The total time, in milliseconds, from errors to audio starting
+	 *         again, for the errors which were recovered from.
+	 */
+	public long getRecoveryTime() {
+		return mRecoveryTime;
+	}
+
+	/**
+	 * @return The longest time, in milliseconds, any recovery took.
+	 */
+	public long getMaxRecoveryTime() {
+		return mMaxRecoveryTime;
+	}
+
+	/**
+	 * @return The times, in milliseconds since the player was given the song,
+	 *         of the points on the buffered percentage curve.
+	 * @see #getBufferedPercents()
+	 */
+	public long[] getBufferedTimes() {
+		return mBufferedTimes.clone();
+	}
+
+	/**
+	 * @return The buffered percentages on the curve, matching
+	 *         {@link #getBufferedTimes()}.
+	 */
+	public int[] getBufferedPercents() {
+		return mBufferedPercents.clone();
+	}
+
+	/**
+	 * @return This report in a form which can be sent to another process.
+	 */
+	public Bundle toBundle() {
+		Bundle bundle = new Bundle();
+		bundle.putLong(TIME_TO_FIRST_AUDIO, mTimeToFirstAudio);
+		bundle.putInt(REBUFFERS, mRebuffers);
+		bundle.putLong(STALL_TIME, mStallTime);
+		bundle.putInt(SEEKS, mSeeks);
+		bundle.putLong(SEEK_TIME, mSeekTime);
+		bundle.putLong(MAX_SEEK_TIME, mMaxSeekTime);
+		bundle.putLongArray(BUFFERED_TIMES, getBufferedTimes());
+		bundle.putIntArray(BUFFERED_PERCENTS, getBufferedPercents());
+		bundle.putInt(RETRIES, mRetries);
+		bundle.putInt(RECOVERIES, mRecoveries);
+		bundle.putLong(RECOVERY_TIME, mRecoveryTime);
+		bundle.putLong(MAX_RECOVERY_TIME, mMaxRecoveryTime);
+		return bundle;
+	}
+
+	/**
+	 * @return The report which was turned into {@code bundle} by
+	 *         {@link #toBundle()}.
+	 */
+	public static PlaybackQuality fromBundle(Bundle bundle) {
+		PlaybackQuality quality = new PlaybackQuality();
+		quality.mTimeToFirstAudio = bundle.getLong(TIME_TO_FIRST_AUDIO, -1);
+		quality.mRebuffers = bundle.getInt(REBUFFERS);
+		quality.mStallTime = bundle.getLong(STALL_TIME);
+		quality.mSeeks = bundle.getInt(SEEKS);
+		quality.mSeekTime = bundle.getLong(SEEK_TIME);
+		quality.mMaxSeekTime = bundle.getLong(MAX_SEEK_TIME);
+		quality.mRetries = bundle.getInt(RETRIES);
+		quality.mRecoveries = bundle.getInt(RECOVERIES);
+		quality.mRecoveryTime = bundle.getLong(RECOVERY_TIME);
+		quality.mMaxRecoveryTime = bundle.getLong(MAX_RECOVERY_TIME);
+		long[] times = bundle.getLongArray(BUFFERED_TIMES);
+		int[] percents = bundle.getIntArray(BUFFERED_PERCENTS);
+		if (times != null && percents != null
+				&& times.length == percents.length) {
+			quality.mBufferedTimes = times;
+			quality.mBufferedPercents = percents;
+			quality.mBufferedPoints = times.length;
+		} else {
+			quality.mBufferedTimes = new long[0];
+			quality.mBufferedPercents = new int[0];
+		}
+		return quality;
+	}
+
+	@Override
+	public String toString() {
+		return "PlaybackQuality [timeToFirstAudio=" + mTimeToFirstAudio
+				+ ", rebuffers=" + mRebuffers + ", stallTime=" + mStallTime
+				+ ", seeks=" + mSeeks + ", seekTime=" + mSeekTime
+				+ ", maxSeekTime=" + mMaxSeekTime + ", bufferedPoints="
+				+ mBufferedPoints + ", retries=" + mRetries + ", recoveries="
+				+ mRecoveries + ", recoveryTime=" + mRecoveryTime + "]";
+	}
+}
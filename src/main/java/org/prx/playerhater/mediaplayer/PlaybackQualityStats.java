@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+/**
+ * {@link PlaybackQuality} reports added up over every song played since
+ * the service started.
+ * <p>
+ * Instances returned by {@link #snapshot()} will not change after they are
+ * returned.
+ */
+public class PlaybackQualityStats {
+
+	/**
+	 * The upper bounds, in milliseconds, of the buckets in the time to first
+	 * audio histogram. The histogram has one more bucket than this array for
+	 * times above the last bound.
+	 */
+	public static final long[] TIME_TO_FIRST_AUDIO_BUCKETS = { 100, 250, 500,
+			1000, 2000, 5000, 10000 };
+
+	private long mSongs;
+	private long mStartedSongs;
+	private long mTimeToFirstAudio;
+	private long mMaxTimeToFirstAudio;
+	private final long[] mTimesToFirstAudio;
+	private long mRebuffers;
+	private long mStallTime;
+	private long mSeeks;
+	private long mSeekTime;
+	private long mMaxSeekTime;
+	private long mRetries;
+	private long mRecoveries;
+	private long mRecoveryTime;
+	private long mMaxRecoveryTime;
+
+	public PlaybackQualityStats() {
+		mTimesToFirstAudio = new long[TIME_TO_FIRST_AUDIO_BUCKETS.length + 1];
+	}
+
+	private PlaybackQualityStats(PlaybackQualityStats other) {
+		mSongs = other.mSongs;
+		mStartedSongs = other.mStartedSongs;
+		mTimeToFirstAudio = other.mTimeToFirstAudio;
+		mMaxTimeToFirstAudio = other.mMaxTimeToFirstAudio;
+		mTimesToFirstAudio = other.mTimesToFirstAudio.clone();
+		mRebuffers = other.mRebuffers;
+		mStallTime = other.mStallTime;
+		mSeeks = other.mSeeks;
+		mSeekTime = other.mSeekTime;
+		mMaxSeekTime = other.mMaxSeekTime;
+		mRetries = other.mRetries;
+		mRecoveries = other.mRecoveries;
+		mRecoveryTime = other.mRecoveryTime;
+		mMaxRecoveryTime = other.mMaxRecoveryTime;
+	}
+
+	/**
+	 * Adds the report for one song.
+	 */
+	public synchronized void add(PlaybackQuality quality) {
+		mSongs++;
+		long timeToFirstAudio = quality.getTimeToFirstAudio();
+		if (timeToFirstAudio >= 0) {
+			mStartedSongs++;
+			mTimeToFirstAudio += timeToFirstAudio;
+			mMaxTimeToFirstAudio = Math.max(mMaxTimeToFirstAudio,
+					timeToFirstAudio);
+			int bucket = 0;
+			while (bucket < TIME_TO_FIRST_AUDIO_BUCKETS.length
+					&& timeToFirstAudio > TIME_TO_FIRST_AUDIO_BUCKETS[bucket]) {
+				bucket++;
+			}
+			mTimesToFirstAudio[bucket]++;
+		}
+		mRebuffers += quality.getRebuffers();
+		mStallTime += quality.getStallTime();
+		mSeeks += quality.getSeeks();
+		mSeekTime += quality.getSeekTime();
+		mMaxSeekTime = Math.max(mMaxSeekTime, quality.getMaxSeekTime());
+		mRetries += quality.getRetries();
+		mRecoveries += quality.getRecoveries();
+		mRecoveryTime += quality.getRecoveryTime();
+		mMaxRecoveryTime = Math.max(mMaxRecoveryTime,
+				quality.getMaxRecoveryTime());
+	}
+
+	public synchronized PlaybackQualityStats snapshot() {
+		return new PlaybackQualityStats(this);
+	}
+
+	/**
+	 * @return The number of songs reported on.
+	 */
+	public long getSongs() {
+		return mSongs;
+	}
+
+	/**
+	 * @return The number of songs whose audio started.
+	 */
+	public long getStartedSongs() {
+		return mStartedSongs;
+	}
+
+	/**
+	 * @return The mean time, in milliseconds, from a song being asked to play
+	 *         to its audio starting.
+	 */
+	public long getMeanTimeToFirstAudio() {
+		return mStartedSongs == 0 ? 0 : mTimeToFirstAudio / mStartedSongs;
+	}
+
+	public long getMaxTimeToFirstAudio() {
+		return mMaxTimeToFirstAudio;
+	}
+
+	/**
+	 * @return The number of songs whose time to first audio fell into each
+	 *         bucket of {@link #TIME_TO_FIRST_AUDIO_BUCKETS}, followed by the
+	 *         number which took longer than the last bucket.
+	 */
+	public long[] getTimeToFirstAudioHistogram() {
+		return mTimesToFirstAudio.clone();
+	}
+
+	/**
+	 * @return The number of times playback stalled to buffer after starting.
+	 */
+	public long getRebuffers() {
+		return mRebuffers;
+	}
+
+	/**
+	 * @return The total time, in milliseconds, spent stalled.
+	 */
+	public long getStallTime() {
+		return mStallTime;
+	}
+
+	/**
+	 * @return The number of rebuffers per song whose audio started.
+	 */
+	public float getRebufferRate() {
+		return mStartedSongs == 0 ? 0 : (float) mRebuffers / mStartedSongs;
+	}
+
+	public long getSeeks() {
+		return mSeeks;
+	}
+
+	/**
+	 * @return The mean time, in milliseconds, a seek took.
+	 */
+	public long getMeanSeekLatency() {
+		return mSeeks == 0 ? 0 : mSeekTime / mSeeks;
+	}
+
+	public long getMaxSeekLatency() {
+		return mMaxSeekTime;
+	}
+
+	/**
+	 * @return The number of times songs were loaded again after an error.
+	 */
+	public long getRetries() {
+		return mRetries;
+	}
+
+	/**
+	 * @return The number of times audio started again after an error.
+	 */
+	public long getRecoveries() {
+		return mRecoveries;
+	}
+
+	/**
+	 * @return The mean time, in milliseconds, from an error to audio
+	 *         starting again.
+	 */
+	public long getMeanRecoveryTime() {
+		return mRecoveries == 0 ? 0 : mRecoveryTime / mRecoveries;
+	}
+
+	public long getMaxRecoveryTime() {
+		return mMaxRecoveryTime;
+	}
+
+	@Override
+	public String toString() {
+		return "PlaybackQualityStats [songs=" + mSongs + ", started="
+				+ mStartedSongs + ", meanTimeToFirstAudio="
+				+ getMeanTimeToFirstAudio() + ", maxTimeToFirstAudio="
+				+ mMaxTimeToFirstAudio + ", rebuffers=" + mRebuffers
+				+ ", stallTime=" + mStallTime + ", seeks=" + mSeeks
+				+ ", meanSeekLatency=" + getMeanSeekLatency()
+				+ ", maxSeekLatency=" + mMaxSeekTime + ", retries=" + mRetries
+				+ ", recoveries=" + mRecoveries + ", meanRecoveryTime="
+				+ getMeanRecoveryTime() + "]";
+	}
+}
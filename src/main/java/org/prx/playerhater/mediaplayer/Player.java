@@ -129,4 +129,13 @@ public abstract class Player {
 		return getState();
 	}
 
+	/**
+	 * @return The title of what is playing, when the player knows it (from a
+	 *         playlist, say) and it may differ from the song's, or
+	 *         {@code null}.
+	 */
+	public String getTitle() {
+		return null;
+	}
+
 }
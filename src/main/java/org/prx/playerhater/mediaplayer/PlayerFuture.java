@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.prx.playerhater.util.Scheduler;
+
+/**
+ * A player checked out of a {@link MediaPlayerPool} by
+ * {@link MediaPlayerPool#getPlayerAsync(android.content.Context, android.net.Uri, Callback)}
+ * which completes once the player is prepared.
+ * <p>
+ * The player itself is available right away from {@link #getPlayer()} and
+ * may be started before it is ready, in which case it starts as soon as it
+ * is prepared. Cancelling a future which has not completed gives the player
+ * back to the pool.
+ * <p>
+ * If every player in the pool was checked out, the future has no player
+ * until one is recycled, and fails if none is within the pool's exhaustion
+ * wait.
+ */
+public class PlayerFuture<P extends Player> implements Future<P> {
+
+	public interface Callback<P> {
+
+		/**
+		 * Called on the pool's {@link Scheduler} thread once the player is
+		 * prepared.
+		 */
+		public void onPlayerReady(P player);
+	}
+
+	private final MediaPlayerPool<P> mPool;
+	private volatile P mPlayer;
+	private final Callback<P> mCallback;
+	private final Scheduler mScheduler;
+	private boolean mDone = false;
+	private boolean mCancelled = false;
+	private boolean mFailed = false;
+
+	private final Runnable mNotifyCallback = new Runnable() {
+
+		@Override
+		public void run() {
+			mCallback.onPlayerReady(mPlayer);
+		}
+	};
+
+	PlayerFuture(MediaPlayerPool<P> pool, P player, Callback<P> callback,
+			Scheduler scheduler) {
+		mPool = pool;
+		mPlayer = player;
+		mCallback = callback;
+		mScheduler = scheduler;
+	}
+
+	/**
+	 * @return The player which was checked out, or {@code null} while the
+	 *         request is waiting for one. It belongs to the caller until it
+	 *         is given back with {@link MediaPlayerPool#recycle(Player)} or
+	 *         this future is cancelled.
+	 */
+	public P getPlayer() {
+		return mPlayer;
+	}
+
+	void onCheckedOut(P player) {
+		mPlayer = player;
+	}
+
+	synchronized void onReady() {
+		if (!mDone) {
+			mDone = true;
+			notifyAll();
+			if (mCallback != null) {
+				mScheduler.post(mNotifyCallback);
+			}
+		}
+	}
+
+	synchronized void onFailed() {
+		if (!mDone) {
+			mDone = true;
+			mFailed = true;
+			notifyAll();
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (mDone) {
+				return false;
+			}
+			mDone = true;
+			mCancelled = true;
+			notifyAll();
+		}
+		mPool.cancel(this);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return mDone;
+	}
+
+	@Override
+	public synchronized P get() throws InterruptedException,
+			ExecutionException {
+		while (!mDone) {
+			wait();
+		}
+		return getResult();
+	}
+
+	@Override
+	public synchronized P get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long remaining = unit.toMillis(timeout);
+		long deadline = System.currentTimeMillis() + remaining;
+		while (!mDone) {
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return getResult();
+	}
+
+	private P getResult() throws ExecutionException {
+		if (mCancelled) {
+			throw new CancellationException();
+		} else if (mFailed && mPlayer == null) {
+			throw new ExecutionException(new IllegalStateException(
+					"MediaPlayer resources exhausted. Are you sure you're #recycle()ing on time?"));
+		} else if (mFailed) {
+			throw new ExecutionException(new IllegalStateException(
+					"Couldn't prepare " + mPlayer));
+		}
+		return mPlayer;
+	}
+}
@@ -16,34 +16,114 @@
 package org.prx.playerhater.mediaplayer;
 
 import java.io.IOException;
-import java.util.Timer;
-import java.util.TimerTask;
 
+import org.prx.playerhater.util.HlsVariantSelector;
+import org.prx.playerhater.util.Log;
+import org.prx.playerhater.util.MirrorProber;
+import org.prx.playerhater.util.Playlist;
 import org.prx.playerhater.util.PlaylistParser;
+import org.prx.playerhater.util.Scheduler;
 import org.prx.playerhater.mediaplayer.Player.StateChangeListener;
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 
 public class PlaylistSupportingPlayer extends SynchronousPlayer implements
-		StateChangeListener {
+		StateChangeListener, Fader.Target {
 	private static final String HTTP = "http";
 	private static final String HTTPS = "https";
-	private Uri[] mPlaylist;
+
+	/*
+	 * Without setNextMediaPlayer, the next player is started this long
+	 * before the end of the song, which roughly covers the time it takes to
+	 * get going.
+	 */
+	private static final int HANDOFF_LEAD = 100;
+	private static final int HANDOFF_MAX_DELAY = 5000;
+
+	/*
+	 * How long an HLS variant plays without rebuffering before throughput is
+	 * sampled again to see whether a higher variant fits.
+	 */
+	private static final int VARIANT_CHECK_INTERVAL = 30000;
+
+	/**
+	 * How long, in milliseconds, each playlist entry after the first fades
+	 * in for, unless changed with {@link #setFades(int, int, Fader.Curve)}.
+	 */
+	public static final int DEFAULT_FADE_DURATION = 2000;
+	/*
+	 * Read without the lock, by getDuration and getCurrentPosition, which
+	 * the service's state watcher calls.
+	 */
+	private volatile Playlist mPlaylist;
 	private Context mContext = null;
     private final Context mPlayerContext;
-	private int mQueuePosition = 0;
+	private volatile int mQueuePosition = 0;
+	private volatile String mEntryTitle;
 	private int streamType = -1;
-	private PlaylistSupportingPlayer mCurrentPlayer = this;
+	private volatile PlaylistSupportingPlayer mCurrentPlayer = this;
 	private PlaylistSupportingPlayer mNextPlayer = null;
 	private boolean mDieOnCompletion = false;
 
 	private LoadPlaylistTask mLoadPlaylistTask;
 	private boolean mPreparingPlaylist = false;
-	private float mLeftVolume;
-	private float mRightVolume;
+
+	/*
+	 * What this player itself is playing, so that it can be swapped for
+	 * another source of the same song.
+	 */
+	private Uri mSourceUri;
+	private Context mSourceContext;
+
+	/*
+	 * When the playlist's entries are mirrors of one live stream, only one
+	 * is played, fastest first, and an error moves on to the next.
+	 */
+	private Playlist mMirrors;
+	private int mMirrorPosition = 0;
+	private float mLeftVolume = 1.0f;
+	private float mRightVolume = 1.0f;
+
+	/*
+	 * Fades scale the volume set with setVolume by this much, so that a fade
+	 * doesn't lose track of it (or of ducking).
+	 */
+	private float mFadeGain = 1.0f;
+	private Fader.Fade mFade;
+	private int mFadeDuration = DEFAULT_FADE_DURATION;
+	private int mCrossfadeDuration = 0;
+	private Fader.Curve mFadeCurve = Fader.EQUAL_POWER;
+	private PlaylistSupportingPlayer mCrossfadingTo;
+
+	private PlaylistSupportingPlayer mHandoffPlayer;
+	private StatelyPlayer mChainedPlayer;
+	private final Runnable mCheckHandoff = new Runnable() {
+
+		@Override
+		public void run() {
+			checkHandoff();
+		}
+	};
+	private final Runnable mRevisitVariant = new Runnable() {
+
+		@Override
+		public void run() {
+			revisitVariant();
+		}
+	};
+	private final Runnable mCheckVariant = new Runnable() {
+
+		@Override
+		public void run() {
+			checkVariant();
+		}
+	};
+	private CheckVariantTask mCheckVariantTask;
 
     public PlaylistSupportingPlayer(Context context) {
         super(context);
@@ -73,6 +153,12 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		mPlaylist = null;
 		mContext = null;
 		mQueuePosition = 0;
+		mEntryTitle = null;
+		mMirrors = null;
+		mSourceUri = null;
+		mSourceContext = null;
+		Scheduler.getDefault().removeCallbacks(mRevisitVariant);
+		cancelVariantCheck();
 		if (uri.getScheme().equals(HTTP) || uri.getScheme().equals(HTTPS)) {
 			loadPlaylist(context, uri);
 		} else {
@@ -91,6 +177,9 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
+		mSourceUri = uri;
+		mSourceContext = context;
+		scheduleVariantCheck();
 		mCurrentPlayer = this;
 		mLoadPlaylistTask = null;
 		mPlaylist = null;
@@ -100,20 +189,159 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		}
 	}
 
-	private synchronized void setPlaylist(Context context, Uri[] playlist) {
+	private synchronized void setPlaylist(Context context, Playlist playlist) {
 		mNextPlayer = newPlayer();
 		try {
-			mNextPlayer.setDataSource(context, playlist[1]);
+			mNextPlayer.setDataSource(context, playlist.getUri(1));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		setSingleSong(context, playlist[0]);
+		setSingleSong(context, playlist.getUri(0));
 		mPlaylist = playlist;
-		if (playlist.length > 2) {
+		if (playlist.size() > 2) {
 			mContext = context;
 		}
 	}
 
+	private synchronized void setMirrors(Context context, Playlist mirrors) {
+		setSingleSong(context, mirrors.getUri(0));
+		mMirrors = mirrors;
+		mMirrorPosition = 0;
+	}
+
+	private synchronized void onPlaylistLoaded(Context context,
+			Playlist playlist, boolean mirrors) {
+		if (playlist.size() == 1) {
+			setSingleSong(context, playlist.getUri(0));
+		} else if (mirrors) {
+			setMirrors(context, playlist);
+		} else {
+			setPlaylist(context, playlist);
+		}
+		setEntryTitle(playlist.getTitle(0));
+	}
+
+	/*
+	 * Entry titles go out as the state changes, through the state watcher.
+	 */
+	private void setEntryTitle(String title) {
+		if (title != null || mEntryTitle != null) {
+			mEntryTitle = title;
+			onStateChanged();
+		}
+	}
+
+	/*
+	 * Loads the next mirror in place of the one which failed, carrying on
+	 * playing if it was.
+	 */
+	private synchronized boolean failOver(MediaPlayer mp) {
+		if (mMirrors == null || mMirrorPosition + 1 >= mMirrors.size()
+				|| !super.equals(mp)) {
+			return false;
+		}
+		Uri mirror = mMirrors.getUri(++mMirrorPosition);
+		Log.d("Failing over to mirror " + mirror);
+		recordError();
+		switchSource(mirror, 0, true);
+		if (mMirrors.getTitle(mMirrorPosition) != null) {
+			setEntryTitle(mMirrors.getTitle(mMirrorPosition));
+		}
+		return true;
+	}
+
+	/*
+	 * After a rebuffer on an HLS variant, moves to the variant the lowered
+	 * throughput estimate now picks, from where playback had got to.
+	 */
+	private synchronized void revisitVariant() {
+		if (mCurrentPlayer != this || mSourceUri == null
+				|| getState() != PREPARING) {
+			return;
+		}
+		Uri variant = HlsVariantSelector.getDefault().onRebuffer(mSourceUri);
+		if (variant != null) {
+			Log.d("Switching to variant " + variant);
+			int position = super.getDuration() > 0 ? super
+					.getCurrentPosition() : 0;
+			switchSource(variant, position, false);
+		}
+	}
+
+	/*
+	 * While an HLS variant plays, checks every VARIANT_CHECK_INTERVAL
+	 * whether a higher one now fits. A rebuffer starts the wait over.
+	 */
+	private synchronized void scheduleVariantCheck() {
+		Scheduler.getDefault().removeCallbacks(mCheckVariant);
+		if (mSourceUri != null
+				&& HlsVariantSelector.getDefault().isVariant(mSourceUri)) {
+			Scheduler.getDefault().postDelayed(mCheckVariant,
+					VARIANT_CHECK_INTERVAL);
+		}
+	}
+
+	private synchronized void cancelVariantCheck() {
+		Scheduler.getDefault().removeCallbacks(mCheckVariant);
+		if (mCheckVariantTask != null) {
+			mCheckVariantTask.cancel(true);
+			mCheckVariantTask = null;
+		}
+	}
+
+	private synchronized void checkVariant() {
+		if (mCheckVariantTask != null) {
+			return;
+		}
+		if (mCurrentPlayer != this || mSourceUri == null
+				|| getState() != STARTED) {
+			scheduleVariantCheck();
+			return;
+		}
+		mCheckVariantTask = new CheckVariantTask(this, mSourceUri);
+		mCheckVariantTask.execute();
+	}
+
+	private synchronized void onVariantChecked(CheckVariantTask task,
+			Uri variant, Uri better) {
+		if (task != mCheckVariantTask) {
+			return;
+		}
+		mCheckVariantTask = null;
+		if (better != null && variant.equals(mSourceUri)
+				&& mCurrentPlayer == this && getState() == STARTED) {
+			Log.d("Switching up to variant " + better);
+			int position = super.getDuration() > 0 ? super
+					.getCurrentPosition() : 0;
+			switchSource(better, position, false);
+		} else {
+			scheduleVariantCheck();
+		}
+	}
+
+	/*
+	 * Plays this song from another source in place of the one this player
+	 * has, carrying on playing if it was.
+	 */
+	private synchronized void switchSource(Uri uri, int position,
+			boolean retry) {
+		boolean play = getState() == STARTED || isWaitingToPlay();
+		super.reset();
+		keepPlaybackQuality(retry);
+		setSingleSong(mSourceContext, uri);
+		if (play) {
+			super.start();
+		} else {
+			super.prepareAsync();
+		}
+		if (position > 0) {
+			super.seekTo(position);
+		}
+		// The new data source dropped any chain to the next song.
+		mChainedPlayer = null;
+		applyHandoff();
+	}
+
 	@Override
 	public void prepareAsync() {
 		if (mLoadPlaylistTask != null && !mPreparingPlaylist) {
@@ -134,6 +362,9 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 
 	@Override
 	public boolean onError(MediaPlayer mp, int what, int extra) {
+		if (failOver(mp)) {
+			return true;
+		}
 		boolean handled = false;
 		if (super.equals(mp)) { // This came from our own player.
 			handled = super.onError(mp, what, extra);
@@ -146,22 +377,37 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		return handled;
 	}
 
+	@Override
+	@SuppressLint("InlinedApi")
+	public synchronized boolean onInfo(MediaPlayer mp, int what, int extra) {
+		boolean rebuffering = what == MediaPlayer.MEDIA_INFO_BUFFERING_START
+				&& getState() == STARTED && super.equals(mp);
+		boolean handled = super.onInfo(mp, what, extra);
+		if (rebuffering) {
+			Scheduler.getDefault().removeCallbacks(mRevisitVariant);
+			Scheduler.getDefault().post(mRevisitVariant);
+			scheduleVariantCheck();
+		}
+		return handled;
+	}
+
 	@Override
 	public synchronized void onCompletion(MediaPlayer mp) {
 		if (mDieOnCompletion) {
 			mDieOnCompletion = false;
 		} else if (mPlaylist != null) {
 			mQueuePosition += 1;
-			if (mQueuePosition < mPlaylist.length) {
+			if (mQueuePosition < mPlaylist.size()) {
 				PlaylistSupportingPlayer tmp = mCurrentPlayer;
 				mCurrentPlayer = mNextPlayer;
 				mNextPlayer = tmp;
 				mCurrentPlayer.startWithFade();
-				if (mQueuePosition + 1 < mPlaylist.length) {
+				setEntryTitle(mPlaylist.getTitle(mQueuePosition));
+				if (mQueuePosition + 1 < mPlaylist.size()) {
 					mNextPlayer.reset();
 					try {
 						mNextPlayer.setDataSource(mContext,
-								mPlaylist[mQueuePosition + 1]);
+								mPlaylist.getUri(mQueuePosition + 1));
 						mNextPlayer.prepareAsync();
 					} catch (IllegalStateException e) {
 						// TODO Auto-generated catch block
@@ -182,9 +428,16 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 					}
 					mNextPlayer = null;
 				}
+				applyHandoff();
 				return;
 			}
 		}
+		// The player being crossfaded to carries on as the new song.
+		mCrossfadingTo = null;
+		// A crossfade out leaves the gain at nothing, and a completed player
+		// can be parked in the pool and started again without being paused,
+		// stopped or reset.
+		cancelFade(true);
 		super.onCompletion(getBarePlayer());
 	}
 
@@ -211,6 +464,7 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 
 	@Override
 	public void reset() {
+		setNextPlayer(null);
 		super.reset();
 		if (mNextPlayer != null && mNextPlayer != this) {
 			mNextPlayer.reset();
@@ -218,10 +472,17 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		if (mCurrentPlayer != null && mCurrentPlayer != this) {
 			mCurrentPlayer.reset();
 		}
+		cancelFade(true);
+		Scheduler.getDefault().removeCallbacks(mRevisitVariant);
+		cancelVariantCheck();
 	}
 
 	@Override
 	public void release() {
+		setNextPlayer(null);
+		Scheduler.getDefault().removeCallbacks(mRevisitVariant);
+		cancelVariantCheck();
+		cancelFade(false);
 		super.release();
 		if (mNextPlayer != null && mNextPlayer != this) {
 			mNextPlayer.release();
@@ -241,23 +502,115 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 	}
 
 	public void startWithFade() throws IllegalStateException {
-		setVolume(0, 0);
+		startWithFade(mFadeDuration);
+	}
+
+	/**
+	 * Starts playing with the volume rising from nothing over
+	 * {@code duration} milliseconds. Pausing, stopping, seeking or resetting
+	 * the player cuts the fade short.
+	 */
+	public synchronized void startWithFade(int duration)
+			throws IllegalStateException {
+		cancelFade(false);
+		if (duration > 0) {
+			mFade = Fader.getDefault().fadeIn(this, duration, mFadeCurve);
+			setFadeGain(mFade.getStartGain());
+		} else {
+			setFadeGain(1.0f);
+		}
 		start();
-		final Timer timer = new Timer(true);
-		TimerTask timerTask = new TimerTask() {
-
-			@Override
-			public void run() {
-				setVolume(mLeftVolume + 0.1f, mRightVolume + 01.f);
-				if (mLeftVolume >= 1.0f || mRightVolume >= 1.0f) {
-					timer.cancel();
-					timer.purge();
-				}
-			}
+	}
+
+	/**
+	 * Sets how playlist entries fade in and how this player crossfades into
+	 * the player set with {@link #setNextPlayer(PlaylistSupportingPlayer)}.
+	 * 
+	 * @param fadeDuration
+	 *            How long, in milliseconds, each playlist entry after the
+	 *            first fades in for, or 0 not to fade.
+	 * @param crossfadeDuration
+	 *            How long, in milliseconds, before the end of the last
+	 *            playlist entry the next player starts, fading in while this
+	 *            one fades out. With 0, the next player starts as this one
+	 *            ends, without a gap.
+	 * @param curve
+	 *            The shape of the fades.
+	 */
+	public synchronized void setFades(int fadeDuration, int crossfadeDuration,
+			Fader.Curve curve) {
+		mFadeDuration = fadeDuration;
+		mCrossfadeDuration = crossfadeDuration;
+		mFadeCurve = curve;
+		if (mCurrentPlayer != this && mCurrentPlayer != null) {
+			mCurrentPlayer.setFades(fadeDuration, 0, curve);
+		}
+		if (mNextPlayer != this && mNextPlayer != null) {
+			mNextPlayer.setFades(fadeDuration, 0, curve);
+		}
+		applyHandoff();
+	}
+
+	@Override
+	public synchronized void onFadeStep(Fader.Fade fade, float gain) {
+		if (fade == mFade) {
+			setFadeGain(gain);
+		}
+	}
 
-		};
+	private synchronized void setFadeGain(float gain) {
+		mFadeGain = gain;
+		applyVolume();
+	}
 
-		timer.schedule(timerTask, 200, 200);
+	private synchronized void cancelFade(boolean restoreVolume) {
+		if (mFade != null) {
+			mFade.cancel();
+			mFade = null;
+		}
+		if (restoreVolume && mFadeGain != 1.0f) {
+			setFadeGain(1.0f);
+		} else {
+			mFadeGain = 1.0f;
+		}
+	}
+
+	/*
+	 * Starts the next player early and fades between the two. The next
+	 * player keeps fading in after this one completes and is handed off.
+	 */
+	private synchronized void crossfadeTo(PlaylistSupportingPlayer next,
+			int duration) {
+		cancelFade(false);
+		mCrossfadingTo = next;
+		mFade = Fader.getDefault().fadeOut(this, duration, mFadeCurve);
+		next.startWithFade(duration);
+	}
+
+	/*
+	 * Stops the player being crossfaded to and puts it back to the start,
+	 * so that the crossfade can run again once this player gets near its
+	 * end.
+	 */
+	private synchronized void cancelCrossfade() {
+		PlaylistSupportingPlayer next = mCrossfadingTo;
+		if (next == null) {
+			return;
+		}
+		mCrossfadingTo = null;
+		if (next.isPlaying()) {
+			next.pause();
+		}
+		next.seekTo(0);
+		applyHandoff();
+	}
+
+	/*
+	 * Pausing, stopping and seeking cut fades short.
+	 */
+	private synchronized void cancelFades() {
+		cancelCrossfade();
+		cancelFade(true);
 	}
 
 	@Override
@@ -267,6 +620,7 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		} else {
 			mCurrentPlayer.pause();
 		}
+		cancelFades();
 	}
 
 	@Override
@@ -276,15 +630,32 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		} else {
 			mCurrentPlayer.stop();
 		}
+		cancelFades();
 	}
 
+	/**
+	 * Seeks within the playlist entry now playing. Positions are counted
+	 * from the start of the playlist when the playlist gives the duration
+	 * of every entry, as {@link #getCurrentPosition()} is; positions
+	 * outside of the entry go to its start or end.
+	 */
 	@Override
 	public void seekTo(int msec) {
+		int start = getEntryStart();
+		if (start != Playlist.UNKNOWN_DURATION) {
+			int duration = getEntryDuration();
+			msec -= start;
+			if (duration > 0) {
+				msec = Math.min(msec, duration);
+			}
+			msec = Math.max(0, msec);
+		}
 		if (mCurrentPlayer == this) {
 			super.seekTo(msec);
 		} else {
 			mCurrentPlayer.seekTo(msec);
 		}
+		cancelFades();
 	}
 
 	@Override
@@ -296,8 +667,19 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		}
 	}
 
+	/**
+	 * @return The position in the whole playlist, if it gives the duration
+	 *         of every entry, otherwise in the entry now playing.
+	 */
 	@Override
 	public int getCurrentPosition() {
+		int start = getEntryStart();
+		int position = getEntryPosition();
+		return start != Playlist.UNKNOWN_DURATION ? start + position
+				: position;
+	}
+
+	private int getEntryPosition() {
 		if (mCurrentPlayer == this) {
 			return super.getCurrentPosition();
 		} else {
@@ -305,8 +687,76 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		}
 	}
 
+	/*
+	 * Where the entry now playing starts in the playlist, or
+	 * UNKNOWN_DURATION if positions are counted from the entry.
+	 */
+	private int getEntryStart() {
+		Playlist playlist = mPlaylist;
+		if (playlist == null
+				|| playlist.getTotalDuration() == Playlist.UNKNOWN_DURATION) {
+			return Playlist.UNKNOWN_DURATION;
+		}
+		return playlist.getStart(Math.min(mQueuePosition, playlist.size() - 1));
+	}
+
+	/**
+	 * @return The playlist this player is playing the entries of, with
+	 *         their titles, durations and where each starts, or
+	 *         {@code null} if it is playing a single song.
+	 */
+	public Playlist getPlaylist() {
+		return mPlaylist;
+	}
+
+	/**
+	 * @return The index in {@link #getPlaylist()} of the entry now playing.
+	 */
+	public int getPlaylistPosition() {
+		return mQueuePosition;
+	}
+
+	/**
+	 * @return The title the playlist gives for the entry now playing, or
+	 *         {@code null}.
+	 */
+	@Override
+	public String getTitle() {
+		return mEntryTitle;
+	}
+
+	/**
+	 * @return How playback of the playlist entry now playing has gone.
+	 */
+	@Override
+	public PlaybackQuality getPlaybackQuality() {
+		if (mCurrentPlayer == this) {
+			return super.getPlaybackQuality();
+		} else {
+			return mCurrentPlayer.getPlaybackQuality();
+		}
+	}
+
+	@Override
+	public void markPlayRequested() {
+		if (mCurrentPlayer == this) {
+			super.markPlayRequested();
+		} else {
+			mCurrentPlayer.markPlayRequested();
+		}
+	}
+
+	/**
+	 * @return The duration of the whole playlist, if it gives the duration
+	 *         of every entry, otherwise of the entries which are loaded.
+	 */
 	@Override
 	public int getDuration() {
+		Playlist playlist = mPlaylist;
+		if (playlist != null
+				&& playlist.getTotalDuration() != Playlist.UNKNOWN_DURATION) {
+			return playlist.getTotalDuration();
+		}
 		int duration = super.getDuration();
 		if (mCurrentPlayer != null && mCurrentPlayer != this) {
 			duration += mCurrentPlayer.getDuration();
@@ -330,10 +780,16 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 	}
 
 	@Override
-	public void setVolume(float leftVolume, float rightVolume) {
-		super.setVolume(leftVolume, rightVolume);
+	public synchronized void setVolume(float leftVolume, float rightVolume) {
 		this.mLeftVolume = leftVolume;
 		this.mRightVolume = rightVolume;
+		applyVolume();
+	}
+
+	private synchronized void applyVolume() {
+		float leftVolume = mLeftVolume * mFadeGain;
+		float rightVolume = mRightVolume * mFadeGain;
+		super.setVolume(leftVolume, rightVolume);
 		if (mCurrentPlayer != this && mCurrentPlayer != null) {
 			mCurrentPlayer.setVolume(leftVolume, rightVolume);
 		}
@@ -367,51 +823,160 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 	}
 
 	@Override
-	public synchronized boolean conditionalPause() {
-		if (mCurrentPlayer == this) {
-			return super.conditionalPause();
+	public boolean conditionalPause() {
+		boolean result;
+		if (isWaitingToRecover()) {
+			setWaitingToRecover(false);
+			result = true;
+		} else if (mCurrentPlayer == this) {
+			result = super.conditionalPause();
 		} else {
-			return mCurrentPlayer.conditionalPause();
+			result = mCurrentPlayer.conditionalPause();
 		}
+		cancelFades();
+		return result;
 	}
 
 	@Override
-	public synchronized boolean conditionalStop() {
-		if (mCurrentPlayer == this) {
-			return super.conditionalStop();
+	public boolean conditionalStop() {
+		boolean result;
+		if (isWaitingToRecover()) {
+			setWaitingToRecover(false);
+			result = true;
+		} else if (mCurrentPlayer == this) {
+			result = super.conditionalStop();
 		} else {
-			return mCurrentPlayer.conditionalStop();
+			result = mCurrentPlayer.conditionalStop();
 		}
+		cancelFades();
+		return result;
 	}
 
 	@Override
-	public synchronized boolean isWaitingToPlay() {
-		if (mCurrentPlayer == this) {
+	public boolean isWaitingToPlay() {
+		if (isWaitingToRecover()) {
+			return true;
+		} else if (mCurrentPlayer == this) {
 			return super.isWaitingToPlay();
 		} else {
 			return mCurrentPlayer.isWaitingToPlay();
 		}
 	}
 
+	/**
+	 * Arranges for {@code next} to start playing as soon as this player
+	 * finishes the last entry of its playlist, without a gap.
+	 * <p>
+	 * On Jelly Bean and up the two players are chained with
+	 * {@link MediaPlayer#setNextMediaPlayer(MediaPlayer)}, which needs
+	 * {@code next} to be prepared; call this again once it is. On older
+	 * platforms {@code next} is started just before this player runs out.
+	 * With a crossfade (see {@link #setFades(int, int, Fader.Curve)}),
+	 * {@code next} is started that long before this player runs out, on
+	 * every platform.
+	 * 
+	 * @param next
+	 *            The player to hand off to, or {@code null} to cancel a
+	 *            handoff.
+	 */
+	public synchronized void setNextPlayer(PlaylistSupportingPlayer next) {
+		mHandoffPlayer = next;
+		if (mCrossfadingTo != null && mCrossfadingTo != next) {
+			cancelCrossfade();
+			cancelFade(true);
+		}
+		applyHandoff();
+	}
+
+	private synchronized boolean isOnLastEntry() {
+		return mLoadPlaylistTask == null
+				&& (mPlaylist == null || mQueuePosition + 1 >= mPlaylist.size());
+	}
+
+	private synchronized void applyHandoff() {
+		Scheduler.getDefault().removeCallbacks(mCheckHandoff);
+		boolean chain = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+				&& mCrossfadeDuration <= 0;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			StatelyPlayer entry = mCurrentPlayer;
+			if (!chain || mHandoffPlayer == null || !isOnLastEntry()
+					|| mHandoffPlayer.getState() != PREPARED) {
+				entry = null;
+			}
+			if (mChainedPlayer != null && mChainedPlayer != entry) {
+				mChainedPlayer.setNextMediaPlayer(null);
+				mChainedPlayer = null;
+			}
+			if (entry != null) {
+				entry.setNextMediaPlayer(mHandoffPlayer);
+				mChainedPlayer = entry;
+			}
+		}
+		if (!chain && mHandoffPlayer != null) {
+			checkHandoff();
+		}
+	}
+
+	private synchronized void checkHandoff() {
+		PlaylistSupportingPlayer next = mHandoffPlayer;
+		if (next == null || !isOnLastEntry()) {
+			return;
+		}
+		long delay = HANDOFF_MAX_DELAY;
+		if (isPlaying()) {
+			int lead = Math.max(HANDOFF_LEAD, mCrossfadeDuration);
+			int remaining = getEntryDuration() - getEntryPosition();
+			if (remaining <= lead) {
+				if (!next.isPlaying()) {
+					if (mCrossfadeDuration > 0) {
+						crossfadeTo(next, remaining);
+					} else {
+						next.start();
+					}
+				}
+				return;
+			}
+			delay = Math.min(remaining - lead, HANDOFF_MAX_DELAY);
+		}
+		Scheduler.getDefault().postDelayed(mCheckHandoff, delay);
+	}
+
+	private int getEntryDuration() {
+		if (mCurrentPlayer == this) {
+			return super.getDuration();
+		} else {
+			return mCurrentPlayer.getDuration();
+		}
+	}
+
 	private PlaylistSupportingPlayer newPlayer() {
 		PlaylistSupportingPlayer player = new PlaylistSupportingPlayer(mPlayerContext);
 		player.setOnErrorListener(this);
 		player.setOnCompletionListener(this);
 		player.setStateChangeListener(this);
+		player.setFades(mFadeDuration, 0, mFadeCurve);
 		if (streamType != -1) {
 			player.setAudioStreamType(streamType);
 		}
 		return player;
 	}
 
-	private static class LoadPlaylistTask extends AsyncTask<Void, Void, Uri[]> {
+	private static class LoadPlaylistTask extends
+			AsyncTask<Void, Void, Playlist> {
 
 		private final PlaylistSupportingPlayer mPlayer;
 		private final Context mContext;
 		private final Uri mUri;
 
 		private Uri mFirstUri;
-		private Uri[] mPlaylist;
+		private Playlist mPlaylist;
+		private boolean mMirrors;
+
+		/*
+		 * The title a playlist gave its only entry, which may itself be a
+		 * playlist without titles.
+		 */
+		private String mTitle;
 
 		private LoadPlaylistTask(PlaylistSupportingPlayer player,
 				Context context, Uri uri) {
@@ -421,17 +986,21 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 		}
 
 		@Override
-		protected Uri[] doInBackground(Void... arg0) {
+		protected Playlist doInBackground(Void... arg0) {
 			mFirstUri = mUri;
-			mPlaylist = PlaylistParser.parsePlaylist(mFirstUri);
+			mPlaylist = PlaylistParser.parse(mFirstUri);
 			for (int depth = 0; depth < 10; depth++) {
-				if (mFirstUri.equals(mPlaylist[0]) && mPlaylist.length == 1) {
-					return mPlaylist;
-				} else if (mPlaylist.length == 1) {
-					mFirstUri = mPlaylist[0];
-					mPlaylist = PlaylistParser.parsePlaylist(mFirstUri);
+				if (mFirstUri.equals(mPlaylist.getUri(0))
+						&& mPlaylist.size() == 1) {
+					return withTitle(mPlaylist);
+				} else if (mPlaylist.size() == 1) {
+					if (mPlaylist.getTitle(0) != null) {
+						mTitle = mPlaylist.getTitle(0);
+					}
+					mFirstUri = mPlaylist.getUri(0);
+					mPlaylist = PlaylistParser.parse(mFirstUri);
 				} else {
-					return mPlaylist;
+					return rank(mPlaylist);
 				}
 				if (isCancelled()) {
 					return null;
@@ -440,14 +1009,68 @@ public class PlaylistSupportingPlayer extends SynchronousPlayer implements
 			throw new IllegalStateException("playlist depth too deep!");
 		}
 
-		@Override
-		protected void onPostExecute(Uri[] result) {
-			if (result.length == 1) {
-				mPlayer.setSingleSong(mContext, result[0]);
-			} else {
-				mPlayer.setPlaylist(mContext, result);
+		private Playlist withTitle(Playlist single) {
+			if (single.getTitle(0) != null || mTitle == null) {
+				return single;
 			}
+			return new Playlist(new Uri[] { single.getUri(0) },
+					new String[] { mTitle },
+					new int[] { single.getDuration(0) });
 		}
 
+		/*
+		 * The entries of a PLS are probed side by side; if they turn out to
+		 * be mirrors, they come back fastest first. Other playlists (such as
+		 * the parts of a show) are played as they are, without a probe
+		 * holding up the first entry.
+		 */
+		private Playlist rank(Playlist playlist) {
+			if (!playlist.isPls()) {
+				return playlist;
+			}
+			try {
+				MirrorProber.Probe[] probes = MirrorProber.probe(playlist
+						.getUris());
+				if (probes != null && MirrorProber.areMirrors(probes)) {
+					mMirrors = true;
+					return playlist.reorder(MirrorProber.getUris(probes));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return playlist;
+		}
+
+		@Override
+		protected void onPostExecute(Playlist result) {
+			mPlayer.onPlaylistLoaded(mContext, result, mMirrors);
+		}
+
+	}
+
+	/*
+	 * Samples throughput on the variant being played, then asks whether a
+	 * higher variant now fits.
+	 */
+	private static class CheckVariantTask extends AsyncTask<Void, Void, Uri> {
+
+		private final PlaylistSupportingPlayer mPlayer;
+		private final Uri mVariant;
+
+		private CheckVariantTask(PlaylistSupportingPlayer player, Uri variant) {
+			mPlayer = player;
+			mVariant = variant;
+		}
+
+		@Override
+		protected Uri doInBackground(Void... arg0) {
+			PlaylistParser.sampleThroughput(mVariant);
+			return HlsVariantSelector.getDefault().onSteadyPlayback(mVariant);
+		}
+
+		@Override
+		protected void onPostExecute(Uri result) {
+			mPlayer.onVariantChecked(this, mVariant, result);
+		}
 	}
 }
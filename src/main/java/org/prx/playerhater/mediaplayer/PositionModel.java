@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import android.os.SystemClock;
+
+/**
+ * Works out a player's position from the last time it was sampled, so that
+ * the native player only has to be asked on state changes, seeks and every
+ * {@link #RESYNC_INTERVAL} while it plays.
+ * <p>
+ * Reads are a single volatile read and some arithmetic. Each resync
+ * measures how far the extrapolated position had drifted from the native
+ * one; see {@link #getLastDrift()} and {@link #getMaxDrift()}.
+ */
+public class PositionModel {
+
+	/**
+	 * How long, in milliseconds, the position is extrapolated while playing
+	 * before the native player is asked again.
+	 */
+	public static final long RESYNC_INTERVAL = 5000;
+
+	/*
+	 * Samples are immutable so that a reader always sees a position and the
+	 * time it was taken together.
+	 */
+	private static final class Sample {
+		private final int position;
+		private final int duration;
+		private final long sampledAt;
+		private final boolean advancing;
+
+		private Sample(int position, int duration, long sampledAt,
+				boolean advancing) {
+			this.position = position;
+			this.duration = duration;
+			this.sampledAt = sampledAt;
+			this.advancing = advancing;
+		}
+	}
+
+	private volatile Sample mSample = new Sample(0, 0, 0, false);
+	private volatile int mLastDrift = 0;
+	private volatile int mMaxDrift = 0;
+	private volatile int mResyncs = 0;
+
+	/**
+	 * Records the position the native player reported.
+	 *
+	 * @param advancing
+	 *            Whether the position is moving, which is to say the player
+	 *            is playing and not buffering.
+	 */
+	synchronized void sample(int position, int duration, boolean advancing) {
+		mSample = new Sample(position, duration, SystemClock.elapsedRealtime(),
+				advancing);
+	}
+
+	/**
+	 * Records the position of a playing player read at a resync, measuring
+	 * how far the model had drifted.
+	 */
+	synchronized void resync(int position) {
+		if (!mSample.advancing) {
+			// The player stopped moving while we were asking it.
+			return;
+		}
+		int drift = Math.abs(position - getPosition());
+		mLastDrift = drift;
+		if (drift > mMaxDrift) {
+			mMaxDrift = drift;
+		}
+		mResyncs++;
+		sample(position, mSample.duration, true);
+	}
+
+	/**
+	 * @return Whether the native player should be asked for its position
+	 *         again.
+	 */
+	boolean needsResync() {
+		Sample sample = mSample;
+		return sample.advancing
+				&& SystemClock.elapsedRealtime() - sample.sampledAt >= RESYNC_INTERVAL;
+	}
+
+	/**
+	 * @return The extrapolated position, in milliseconds, which is never past
+	 *         the duration if the duration is known.
+	 */
+	public int getPosition() {
+		Sample sample = mSample;
+		if (!sample.advancing) {
+			return sample.position;
+		}
+		long position = sample.position + SystemClock.elapsedRealtime()
+				- sample.sampledAt;
+		if (sample.duration > 0 && position > sample.duration) {
+			return sample.duration;
+		}
+		return (int) position;
+	}
+
+	/**
+	 * @return The difference, in milliseconds, between the extrapolated and
+	 *         the native position at the last resync.
+	 */
+	public int getLastDrift() {
+		return mLastDrift;
+	}
+
+	/**
+	 * @return The largest difference, in milliseconds, seen at any resync.
+	 */
+	public int getMaxDrift() {
+		return mMaxDrift;
+	}
+
+	/**
+	 * @return The number of times the position was resynced with the native
+	 *         player while playing.
+	 */
+	public int getResyncs() {
+		return mResyncs;
+	}
+}
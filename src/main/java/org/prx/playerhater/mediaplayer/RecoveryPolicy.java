@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import java.util.Random;
+
+import android.annotation.SuppressLint;
+import android.media.MediaPlayer;
+import android.net.Uri;
+
+/**
+ * Decides whether a player error is worth retrying, and how long to wait
+ * before each retry.
+ * <p>
+ * Errors which say the song itself is bad (malformed or unsupported media)
+ * are fatal. So is anything going wrong with a local file or content, which
+ * trying again won't fix. Everything else on a network stream, and the
+ * media server dying on any song, is taken to be transient.
+ * <p>
+ * Retries back off exponentially from the base delay. The delay is capped
+ * at the max delay, then a random amount, up to half of it, is taken off,
+ * so that clients which failed together don't all retry together.
+ */
+public class RecoveryPolicy {
+
+	public static final long GIVE_UP = -1;
+
+	private final int mMaxRetries;
+	private final long mBaseDelay;
+	private final long mMaxDelay;
+	private final Random mRandom = new Random();
+
+	/**
+	 * @param maxRetries
+	 *            How many times in a row to retry before giving up; 0 never
+	 *            retries.
+	 * @param baseDelay
+	 *            The wait, in milliseconds, before the first retry.
+	 * @param maxDelay
+	 *            The longest wait, in milliseconds, before any retry.
+	 */
+	public RecoveryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+		mMaxRetries = maxRetries;
+		mBaseDelay = Math.max(0, baseDelay);
+		mMaxDelay = Math.max(mBaseDelay, maxDelay);
+	}
+
+	@SuppressLint("InlinedApi")
+	public boolean isTransient(Uri uri, int what, int extra) {
+		if (what == MediaPlayer.MEDIA_ERROR_SERVER_DIED) {
+			return true;
+		}
+		if (what == MediaPlayer.MEDIA_ERROR_NOT_VALID_FOR_PROGRESSIVE_PLAYBACK
+				|| extra == MediaPlayer.MEDIA_ERROR_MALFORMED
+				|| extra == MediaPlayer.MEDIA_ERROR_UNSUPPORTED) {
+			return false;
+		}
+		String scheme = uri.getScheme();
+		return "http".equals(scheme) || "https".equals(scheme);
+	}
+
+	/**
+	 * @param retries
+	 *            How many times the song has already been retried since it
+	 *            last played.
+	 * @return How long, in milliseconds, to wait before retrying, or
+	 *         {@link #GIVE_UP}.
+	 */
+	public long getRetryDelay(Uri uri, int what, int extra, int retries) {
+		if (retries >= mMaxRetries || !isTransient(uri, what, extra)) {
+			return GIVE_UP;
+		}
+		long delay = mMaxDelay;
+		if (retries < 30 && (mBaseDelay << retries) < mMaxDelay) {
+			delay = mBaseDelay << retries;
+		}
+		long jitter;
+		synchronized (mRandom) {
+			jitter = (long) (mRandom.nextDouble() * (delay / 2));
+		}
+		return delay - jitter;
+	}
+}
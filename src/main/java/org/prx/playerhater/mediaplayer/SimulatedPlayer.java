@@ -0,0 +1,605 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import static org.prx.playerhater.mediaplayer.StatelyPlayer.END;
+import static org.prx.playerhater.mediaplayer.StatelyPlayer.ERROR;
+import static org.prx.playerhater.mediaplayer.StatelyPlayer.IDLE;
+import static org.prx.playerhater.mediaplayer.StatelyPlayer.INITIALIZED;
+import static org.prx.playerhater.mediaplayer.StatelyPlayer.PAUSED;
+import static org.prx.playerhater.mediaplayer.StatelyPlayer.PLAYBACK_COMPLETED;
+import static org.prx.playerhater.mediaplayer.StatelyPlayer.PREPARED;
+import static org.prx.playerhater.mediaplayer.StatelyPlayer.PREPARING;
+import static org.prx.playerhater.mediaplayer.StatelyPlayer.STARTED;
+import static org.prx.playerhater.mediaplayer.StatelyPlayer.STOPPED;
+import static org.prx.playerhater.mediaplayer.StatelyPlayer.WILL_PLAY;
+
+import org.prx.playerhater.util.Scheduler;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnBufferingUpdateListener;
+import android.media.MediaPlayer.OnCompletionListener;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnInfoListener;
+import android.media.MediaPlayer.OnPreparedListener;
+import android.media.MediaPlayer.OnSeekCompleteListener;
+import android.net.Uri;
+
+/**
+ * A {@link Player} which plays nothing, but goes through the same states as
+ * a {@link SynchronousPlayer} with latencies, buffering stalls, errors and
+ * completion driven by a {@link Scheduler}. Paired with a
+ * {@link org.prx.playerhater.util.VirtualScheduler} it runs
+ * deterministically off-device, so a {@link MediaPlayerPool} (or anything
+ * else written against {@link Player}) can be exercised and benchmarked
+ * under scripted load.
+ * <p>
+ * Listeners are called with a {@code null} {@link MediaPlayer}, and the
+ * {@link StateChangeListener} on the scheduler's thread.
+ */
+public class SimulatedPlayer extends Player {
+
+	/**
+	 * How a simulated player behaves for one data source. Times are in
+	 * milliseconds on the scheduler's clock.
+	 */
+	public static class Behavior {
+		public long prepareLatency = 500;
+		public long seekLatency = 100;
+		public int duration = 180000;
+
+		/**
+		 * The position at which playback stalls to buffer, or -1 for never.
+		 */
+		public int bufferingAt = -1;
+		public long bufferingLength = 0;
+
+		/**
+		 * Fail the prepare with {@link #errorWhat} instead of completing it.
+		 */
+		public boolean prepareFails = false;
+
+		/**
+		 * The position at which playback fails with {@link #errorWhat}, or
+		 * -1 for never.
+		 */
+		public int errorAt = -1;
+		public int errorWhat = MediaPlayer.MEDIA_ERROR_UNKNOWN;
+	}
+
+	/**
+	 * Decides how the player behaves for each data source it is given.
+	 */
+	public interface Script {
+		public Behavior getBehavior(Uri uri);
+	}
+
+	private final Scheduler mScheduler;
+	private final Script mScript;
+	private final StatelyPlayer.ListenerCollection mListeners = new StatelyPlayer.ListenerCollection();
+	private final StateChangePublisher mPublisher;
+
+	private Behavior mBehavior;
+	private int mState = IDLE;
+	private int mSeekFromState;
+	private int mPosition;
+	private long mPositionAt;
+	private int mPendingSeek = -1;
+	private boolean mBuffering = false;
+	private boolean mBufferedOnce = false;
+	private boolean mShouldPlayWhenPrepared = false;
+	private int mShouldSkipWhenPrepared = 0;
+	private float mLeftVolume = 1.0f;
+	private float mRightVolume = 1.0f;
+	private int mStreamType = -1;
+
+	private final Runnable mPrepareDone = new Runnable() {
+
+		@Override
+		public void run() {
+			onPrepareDone();
+		}
+	};
+
+	private final Runnable mSeekDone = new Runnable() {
+
+		@Override
+		public void run() {
+			onSeekDone();
+		}
+	};
+
+	private final Runnable mPlaybackEvent = new Runnable() {
+
+		@Override
+		public void run() {
+			onPlaybackEvent();
+		}
+	};
+
+	public SimulatedPlayer(Scheduler scheduler, Script script) {
+		mScheduler = scheduler;
+		mScript = script;
+		mPublisher = new StateChangePublisher(this, scheduler);
+	}
+
+	/**
+	 * @return A factory for a {@link MediaPlayerPool} which makes simulated
+	 *         players sharing {@code scheduler} and {@code script}.
+	 */
+	public static MediaPlayerPool.PlayerFactory<SimulatedPlayer> factory(
+			final Scheduler scheduler, final Script script) {
+		return new MediaPlayerPool.PlayerFactory<SimulatedPlayer>() {
+
+			@Override
+			public SimulatedPlayer newPlayer(Context context) {
+				return new SimulatedPlayer(scheduler, script);
+			}
+		};
+	}
+
+	/* Stately API */
+
+	@Override
+	public synchronized int getState() {
+		return mState;
+	}
+
+	@Override
+	public synchronized int getStateMask() {
+		return mState | (isWaitingToPlay() ? WILL_PLAY : 0);
+	}
+
+	@Override
+	public synchronized String getStateName() {
+		return StatelyPlayer.getStateName(mState);
+	}
+
+	@Override
+	public void setStateChangeListener(StateChangeListener listener) {
+		mPublisher.setListener(listener);
+	}
+
+	@Override
+	public synchronized boolean isWaitingToPlay() {
+		return mBuffering || mShouldPlayWhenPrepared
+				|| mShouldSkipWhenPrepared != 0;
+	}
+
+	/* Player API */
+
+	@Override
+	public synchronized void reset() {
+		cancelEvents();
+		mBehavior = null;
+		mPosition = 0;
+		mPendingSeek = -1;
+		mBuffering = false;
+		mBufferedOnce = false;
+		mShouldPlayWhenPrepared = false;
+		mShouldSkipWhenPrepared = 0;
+		setState(IDLE);
+	}
+
+	@Override
+	public synchronized void release() {
+		cancelEvents();
+		setState(END);
+	}
+
+	@Override
+	public synchronized void setDataSource(Context context, Uri uri) {
+		if (mState != IDLE) {
+			throw illegalState("setDataSource");
+		}
+		mBehavior = mScript.getBehavior(uri);
+		setState(INITIALIZED);
+	}
+
+	@Override
+	public synchronized void prepareAsync() {
+		if (mState != INITIALIZED && mState != STOPPED) {
+			throw illegalState("prepareAsync");
+		}
+		setState(PREPARING);
+		mScheduler.postDelayed(mPrepareDone, mBehavior.prepareLatency);
+	}
+
+	@Override
+	public synchronized void start() {
+		switch (mState) {
+		case PREPARING:
+			mShouldPlayWhenPrepared = true;
+			notifyStateChanged();
+			break;
+		case INITIALIZED:
+		case STOPPED:
+			mShouldPlayWhenPrepared = true;
+			prepareAsync();
+			break;
+		case PLAYBACK_COMPLETED:
+			// Restarts from the beginning.
+			mPosition = 0;
+			mBufferedOnce = false;
+			play();
+			break;
+		case PREPARED:
+		case PAUSED:
+			play();
+			break;
+		case STARTED:
+			break;
+		default:
+			throw illegalState("start");
+		}
+	}
+
+	@Override
+	public synchronized void pause() {
+		if (mState != STARTED && mState != PAUSED) {
+			throw illegalState("pause");
+		}
+		mPosition = getCurrentPosition();
+		mScheduler.removeCallbacks(mPlaybackEvent);
+		setState(PAUSED);
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (mState != PREPARED && mState != STARTED && mState != STOPPED
+				&& mState != PAUSED && mState != PLAYBACK_COMPLETED) {
+			throw illegalState("stop");
+		}
+		mPosition = getCurrentPosition();
+		cancelEvents();
+		setState(STOPPED);
+	}
+
+	@Override
+	public synchronized void seekTo(int msec) {
+		if (mPendingSeek >= 0) {
+			// Only the latest target of a burst of seeks matters.
+			mPendingSeek = msec;
+			return;
+		}
+		if (mState == INITIALIZED || mState == STOPPED) {
+			mShouldSkipWhenPrepared = msec;
+			prepareAsync();
+			return;
+		}
+		if (mState == PREPARING) {
+			mShouldSkipWhenPrepared = msec;
+			return;
+		}
+		if (mState != PREPARED && mState != STARTED && mState != PAUSED
+				&& mState != PLAYBACK_COMPLETED) {
+			throw illegalState("seekTo");
+		}
+		mPosition = getCurrentPosition();
+		mScheduler.removeCallbacks(mPlaybackEvent);
+		mSeekFromState = mState;
+		mPendingSeek = msec;
+		setState(PREPARING);
+		mScheduler.postDelayed(mSeekDone, mBehavior.seekLatency);
+	}
+
+	@Override
+	public synchronized boolean isPlaying() {
+		return mState == STARTED && !mBuffering;
+	}
+
+	@Override
+	public synchronized int getCurrentPosition() {
+		if (mState != STARTED || mBuffering) {
+			return mPosition;
+		}
+		long position = mPosition + mScheduler.uptimeMillis() - mPositionAt;
+		return (int) Math.min(position, mBehavior.duration);
+	}
+
+	@Override
+	public synchronized int getDuration() {
+		switch (mState) {
+		case PREPARED:
+		case STARTED:
+		case PAUSED:
+		case STOPPED:
+		case PLAYBACK_COMPLETED:
+			return mBehavior.duration;
+		default:
+			return 0;
+		}
+	}
+
+	@Override
+	public synchronized void setAudioStreamType(int streamtype) {
+		mStreamType = streamtype;
+	}
+
+	/**
+	 * @return The last stream type set, or -1 if none was.
+	 */
+	public synchronized int getAudioStreamType() {
+		return mStreamType;
+	}
+
+	@Override
+	public synchronized void setVolume(float leftVolume, float rightVolume) {
+		mLeftVolume = leftVolume;
+		mRightVolume = rightVolume;
+	}
+
+	public synchronized float getLeftVolume() {
+		return mLeftVolume;
+	}
+
+	public synchronized float getRightVolume() {
+		return mRightVolume;
+	}
+
+	@Override
+	public boolean equals(MediaPlayer mp) {
+		return false;
+	}
+
+	@Override
+	public synchronized void setOnErrorListener(OnErrorListener errorListener) {
+		mListeners.errorListener = errorListener;
+	}
+
+	@Override
+	public synchronized void setOnPreparedListener(
+			OnPreparedListener preparedListener) {
+		mListeners.preparedListener = preparedListener;
+	}
+
+	@Override
+	public synchronized void setOnBufferingUpdateListener(
+			OnBufferingUpdateListener bufferingUpdateListener) {
+		mListeners.bufferingUpdateListener = bufferingUpdateListener;
+	}
+
+	@Override
+	public synchronized void setOnCompletionListener(
+			OnCompletionListener completionListener) {
+		mListeners.completionListener = completionListener;
+	}
+
+	@Override
+	public synchronized void setOnInfoListener(OnInfoListener infoListener) {
+		mListeners.infoListener = infoListener;
+	}
+
+	@Override
+	public synchronized void setOnSeekCompleteListener(
+			OnSeekCompleteListener seekCompleteListener) {
+		mListeners.seekCompleteListener = seekCompleteListener;
+	}
+
+	/* Synchronous API */
+
+	@Override
+	public synchronized boolean prepare(Context context, Uri uri) {
+		mShouldPlayWhenPrepared = false;
+		mShouldSkipWhenPrepared = 0;
+		if (mState != IDLE) {
+			reset();
+		}
+		setDataSource(context, uri);
+		prepareAsync();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean prepareAndPlay(Context context, Uri uri,
+			int position) {
+		prepare(context, uri);
+		mShouldSkipWhenPrepared = position;
+		mShouldPlayWhenPrepared = true;
+		notifyStateChanged();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean conditionalPause() {
+		if (mShouldPlayWhenPrepared) {
+			mShouldPlayWhenPrepared = false;
+			return true;
+		} else if (mState == STARTED) {
+			pause();
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized boolean conditionalStop() {
+		if (mShouldPlayWhenPrepared) {
+			mShouldPlayWhenPrepared = false;
+			return true;
+		}
+		if (mState != PREPARED && mState != STARTED && mState != PAUSED
+				&& mState != PLAYBACK_COMPLETED) {
+			return false;
+		}
+		stop();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean conditionalPlay() {
+		try {
+			start();
+		} catch (IllegalStateException e) {
+			return false;
+		}
+		return true;
+	}
+
+	/* Simulation */
+
+	private synchronized void onPrepareDone() {
+		if (mState != PREPARING || mPendingSeek >= 0) {
+			return;
+		}
+		if (mBehavior.prepareFails) {
+			fail();
+			return;
+		}
+		mPosition = 0;
+		setState(PREPARED);
+		if (mListeners.preparedListener != null) {
+			mListeners.preparedListener.onPrepared(null);
+		}
+		startIfNecessary();
+	}
+
+	private synchronized void onSeekDone() {
+		if (mPendingSeek < 0) {
+			return;
+		}
+		mPosition = Math.min(mPendingSeek, mBehavior.duration);
+		mPendingSeek = -1;
+		mShouldSkipWhenPrepared = 0;
+		if (mSeekFromState == STARTED) {
+			play();
+		} else {
+			setState(mSeekFromState == PLAYBACK_COMPLETED ? PAUSED
+					: mSeekFromState);
+		}
+		if (mListeners.seekCompleteListener != null) {
+			mListeners.seekCompleteListener.onSeekComplete(null);
+		}
+		startIfNecessary();
+	}
+
+	/*
+	 * Fires when playback reaches the next interesting position: a stall,
+	 * an error or the end.
+	 */
+	private synchronized void onPlaybackEvent() {
+		if (mState != STARTED) {
+			return;
+		}
+		if (mBuffering) {
+			mBuffering = false;
+			mPositionAt = mScheduler.uptimeMillis();
+			info(MediaPlayer.MEDIA_INFO_BUFFERING_END);
+			notifyStateChanged();
+			schedulePlaybackEvent();
+			return;
+		}
+		int position = getCurrentPosition();
+		if (mBehavior.errorAt >= 0 && position >= mBehavior.errorAt) {
+			mPosition = position;
+			fail();
+		} else if (!mBufferedOnce && mBehavior.bufferingAt >= 0
+				&& position >= mBehavior.bufferingAt) {
+			mPosition = position;
+			mBuffering = true;
+			mBufferedOnce = true;
+			info(MediaPlayer.MEDIA_INFO_BUFFERING_START);
+			notifyStateChanged();
+			mScheduler.postDelayed(mPlaybackEvent, mBehavior.bufferingLength);
+		} else if (position >= mBehavior.duration) {
+			mPosition = mBehavior.duration;
+			setState(PLAYBACK_COMPLETED);
+			if (mListeners.completionListener != null) {
+				mListeners.completionListener.onCompletion(null);
+			}
+		} else {
+			schedulePlaybackEvent();
+		}
+	}
+
+	private void play() {
+		mPositionAt = mScheduler.uptimeMillis();
+		setState(STARTED);
+		schedulePlaybackEvent();
+	}
+
+	private void schedulePlaybackEvent() {
+		int position = getCurrentPosition();
+		int next = mBehavior.duration;
+		if (mBehavior.errorAt >= position) {
+			next = Math.min(next, mBehavior.errorAt);
+		}
+		if (!mBufferedOnce && mBehavior.bufferingAt >= position) {
+			next = Math.min(next, mBehavior.bufferingAt);
+		}
+		mScheduler.removeCallbacks(mPlaybackEvent);
+		mScheduler.postDelayed(mPlaybackEvent, Math.max(0, next - position));
+	}
+
+	private void startIfNecessary() {
+		if (mShouldSkipWhenPrepared != 0) {
+			int position = mShouldSkipWhenPrepared;
+			mShouldSkipWhenPrepared = 0;
+			seekTo(position);
+		} else if (mShouldPlayWhenPrepared) {
+			mShouldPlayWhenPrepared = false;
+			start();
+		}
+	}
+
+	private void fail() {
+		cancelEvents();
+		mBuffering = false;
+		int what = mBehavior.errorWhat;
+		boolean handled = mListeners.errorListener != null
+				&& mListeners.errorListener.onError(null, what, 0);
+		if (mState != IDLE && mState != END) {
+			setState(ERROR);
+		}
+		if (!handled && mListeners.completionListener != null) {
+			mListeners.completionListener.onCompletion(null);
+		}
+	}
+
+	private void info(int what) {
+		if (mListeners.infoListener != null) {
+			mListeners.infoListener.onInfo(null, what, 0);
+		}
+	}
+
+	private void cancelEvents() {
+		mScheduler.removeCallbacks(mPrepareDone);
+		mScheduler.removeCallbacks(mSeekDone);
+		mScheduler.removeCallbacks(mPlaybackEvent);
+	}
+
+	private void setState(int state) {
+		mState = state;
+		notifyStateChanged();
+	}
+
+	private void notifyStateChanged() {
+		mPublisher.publish(getStateMask());
+	}
+
+	private IllegalStateException illegalState(String methodName) {
+		return new IllegalStateException("Cannot call " + methodName
+				+ " in the " + StatelyPlayer.getStateName(mState)
+				+ " state. (" + this + ")");
+	}
+
+	@Override
+	public String toString() {
+		return "SimulatedPlayer@" + Integer.toHexString(hashCode()) + " ("
+				+ getStateName() + ")";
+	}
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.prx.playerhater.mediaplayer.Player.StateChangeListener;
+import org.prx.playerhater.util.Scheduler;
+
+/**
+ * Hands a player's state changes to its {@link StateChangeListener} on a
+ * {@link Scheduler}'s thread rather than the thread which made them.
+ * <p>
+ * Only the latest state is kept: if the player moves through several states
+ * before the listener gets to run (as it does while seeking or buffering),
+ * the listener is told about the last one only, and it isn't told at all
+ * if that is the state it last heard about.
+ */
+final class StateChangePublisher implements Runnable {
+
+	private static final int NONE = Integer.MIN_VALUE;
+
+	private final Player mPlayer;
+	private final Scheduler mScheduler;
+	private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+	private volatile StateChangeListener mListener;
+	private volatile int mLatest = NONE;
+
+	// Only touched on the scheduler's thread.
+	private StateChangeListener mDeliveredTo;
+	private int mDelivered = NONE;
+
+	StateChangePublisher(Player player, Scheduler scheduler) {
+		mPlayer = player;
+		mScheduler = scheduler;
+	}
+
+	void setListener(StateChangeListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Records {@code stateMask} as the player's latest state and makes sure
+	 * a delivery is on its way. Never blocks on the listener, so this is
+	 * safe to call with the player's lock held.
+	 */
+	void publish(int stateMask) {
+		mLatest = stateMask;
+		if (mScheduled.compareAndSet(false, true)) {
+			mScheduler.post(this);
+		}
+	}
+
+	@Override
+	public void run() {
+		// Cleared before reading, so that a publish which races with this
+		// delivery schedules another one.
+		mScheduled.set(false);
+		int stateMask = mLatest;
+		StateChangeListener listener = mListener;
+		if (listener == null || stateMask == NONE) {
+			return;
+		}
+		if (listener == mDeliveredTo && stateMask == mDelivered) {
+			return;
+		}
+		mDeliveredTo = listener;
+		mDelivered = stateMask;
+		listener.onStateChanged(mPlayer, stateMask);
+	}
+}
@@ -16,10 +16,14 @@
 package org.prx.playerhater.mediaplayer;
 
 import java.io.IOException;
+import java.util.concurrent.Future;
 
 import org.prx.playerhater.util.Log;
+import org.prx.playerhater.util.Scheduler;
+import org.prx.playerhater.util.Tracer;
 
-import android.content.ContentProviderClient;
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.media.MediaPlayer;
@@ -30,7 +34,7 @@ import android.media.MediaPlayer.OnInfoListener;
 import android.media.MediaPlayer.OnPreparedListener;
 import android.media.MediaPlayer.OnSeekCompleteListener;
 import android.net.Uri;
-import android.os.ParcelFileDescriptor;
+import android.os.Build;
 import android.os.PowerManager;
 
 public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
@@ -145,10 +149,104 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 		return stateMask;
 	}
 
+	/*
+	 * Every state change callers can ask for, with the states it may be
+	 * asked for in and the state it leads to. Queries have no target state.
+	 */
+	private static final Transition PREPARE_ASYNC = new Transition(
+			"prepareAsync", PREPARING, INITIALIZED, STOPPED);
+	private static final Transition PREPARE_CONTENT = new Transition(
+			"prepareAsync", PREPARING_CONTENT, LOADING_CONTENT);
+	private static final Transition START = new Transition("start",
+			STARTED, PREPARED, STARTED, PAUSED, PLAYBACK_COMPLETED);
+	private static final Transition PAUSE = new Transition("pause", PAUSED,
+			STARTED, PAUSED);
+	private static final Transition STOP = new Transition("stop", STOPPED,
+			PREPARED, STARTED, STOPPED, PAUSED, PLAYBACK_COMPLETED);
+	private static final Transition SEEK_TO = new Transition("seekTo",
+			PREPARING, PREPARED, STARTED, PAUSED, PLAYBACK_COMPLETED);
+	private static final Transition GET_POSITION = new Transition(
+			"getCurrentPosition", INVALID_STATE, PREPARED, STARTED, PAUSED,
+			STOPPED, PLAYBACK_COMPLETED);
+	private static final Transition GET_DURATION = new Transition(
+			"getDuration", INVALID_STATE, PREPARED, STARTED, PAUSED,
+			PLAYBACK_COMPLETED);
+
+	private static final class Transition {
+		private final String name;
+		private final int to;
+		private final int from;
+
+		private Transition(String name, int to, int... from) {
+			this.name = name;
+			this.to = to;
+			int mask = 0;
+			for (int state : from) {
+				mask |= bit(state);
+			}
+			this.from = mask;
+		}
+
+		private boolean allows(int state) {
+			return (from & bit(state)) != 0;
+		}
+
+		/*
+		 * The states are flags apart from IDLE, END and the internal content
+		 * states, which get bits of their own here.
+		 */
+		private static int bit(int state) {
+			switch (state) {
+			case IDLE:
+				return 1 << 20;
+			case END:
+				return 1 << 21;
+			case LOADING_CONTENT:
+				return 1 << 22;
+			case PREPARING_CONTENT:
+				return 1 << 23;
+			default:
+				return state > 0 ? state : 0;
+			}
+		}
+	}
+
+	/**
+	 * Creates the {@link MediaPlayer} each StatelyPlayer drives.
+	 */
+	public interface MediaPlayerFactory {
+		public MediaPlayer newMediaPlayer();
+	}
+
+	private static final MediaPlayerFactory DEFAULT_FACTORY =
+		new MediaPlayerFactory() {
+		@Override
+		public MediaPlayer newMediaPlayer() {
+			return new MediaPlayer();
+		}
+	};
+
+	private static volatile MediaPlayerFactory sMediaPlayerFactory =
+		DEFAULT_FACTORY;
+
+	/**
+	 * Replaces the factory StatelyPlayers take their {@link MediaPlayer}
+	 * from, so that the player stack can run against a fake one (with
+	 * {@link Scheduler#setDefault(Scheduler)} for the clock) off-device.
+	 * Players already created keep their MediaPlayer.
+	 * 
+	 * @param factory
+	 *            The factory to use, or {@code null} for real MediaPlayers.
+	 */
+	public static void setMediaPlayerFactory(MediaPlayerFactory factory) {
+		sMediaPlayerFactory = factory == null ? DEFAULT_FACTORY : factory;
+	}
+
 	private final MediaPlayer mMediaPlayer;
-	private StateChangeListener mStateChangeListener;
-	private boolean mBuffering = false;
-	private boolean mNotSeekable = false;
+	private volatile boolean mBuffering = false;
+	private volatile boolean mWaitingToRecover = false;
+	private boolean mKeepQuality = false;
+	private volatile boolean mNotSeekable = false;
 
 	public static class ListenerCollection {
 		public OnErrorListener errorListener;
@@ -161,16 +259,37 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 
 	private final ListenerCollection mListenerCollection;
 
-	private int mState;
+	/*
+	 * The state is read without taking the player's lock, which is all the
+	 * volatile is for. Changes to it, like every transition and callback, are
+	 * made holding the lock, since they go along with calls to the
+	 * MediaPlayer, which must not be made from two threads at once.
+	 */
+	private volatile int mState = IDLE;
 	private int mPrevState;
+	private boolean mSeeking = false;
+	private int mPendingSeek = -1;
+	private final PositionModel mPosition = new PositionModel();
+	private final PlaybackQuality mQuality = new PlaybackQuality();
 
 	private boolean mInErrorCallback;
 
+	private Future<?> mContentLoad;
+	private int mContentGeneration = 0;
+
+	// The request which the outstanding content load and prepare are for.
+	private long mContentTraceId = Tracer.NO_TRACE;
+	private long mContentStartedAt;
+	private long mPrepareTraceId = Tracer.NO_TRACE;
+	private long mPrepareStartedAt;
+
+	private final StateChangePublisher mPublisher;
+
 	public StatelyPlayer(Context context) {
-		mMediaPlayer = new MediaPlayer();
+		mMediaPlayer = sMediaPlayerFactory.newMediaPlayer();
         setWakeLock(context);
-		setState(IDLE);
 		mListenerCollection = new ListenerCollection();
+		mPublisher = new StateChangePublisher(this, Scheduler.getDefault());
 		getBarePlayer().setOnBufferingUpdateListener(this);
 		getBarePlayer().setOnCompletionListener(this);
 		getBarePlayer().setOnErrorListener(this);
@@ -181,20 +300,21 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 
 	@Override
 	public void setStateChangeListener(StateChangeListener listener) {
-		mStateChangeListener = listener;
+		mPublisher.setListener(listener);
 	}
 
 	@Override
-	public synchronized int getState() {
+	public int getState() {
 		return getPublicState(getInternalState());
 	}
 
-	public synchronized int getStateMask() {
+	@Override
+	public int getStateMask() {
 		return getState() | (isWaitingToPlay() ? WILL_PLAY : 0)
 				| (mNotSeekable ? NOT_SEEKABLE : 0);
 	}
 
-	private synchronized int getInternalState() {
+	private int getInternalState() {
 		return mState;
 	}
 
@@ -212,18 +332,78 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 		}
 	}
 
-	private synchronized void setState(int state) {
+	private void setState(int state) {
 		mState = state;
 		mInErrorCallback = false;
+		if (state == IDLE || state == END || state == ERROR) {
+			mSeeking = false;
+			mPendingSeek = -1;
+		}
+		updatePosition(state);
+		if (state == STARTED) {
+			mQuality.onStarted();
+		}
 		onStateChanged();
 	}
 
-	protected void onStateChanged() {
-		if (mStateChangeListener != null) {
-			mStateChangeListener.onStateChanged(this, getStateMask());
+	/*
+	 * Returns the state transition can be made from, or throws if it can't
+	 * be made in the current state.
+	 */
+	private int checkTransition(Transition transition) {
+		int state = getInternalState();
+		if (!transition.allows(state)) {
+			throw illegalState(transition.name);
+		}
+		return state;
+	}
+
+	/*
+	 * Completes a transition checked with checkTransition. Callbacks take
+	 * the player's lock too, and the MediaPlayer delivers them on its own
+	 * looper rather than from inside the call, so nothing can have moved the
+	 * state on in between.
+	 */
+	private void commitTransition(Transition transition) {
+		mState = transition.to;
+		mInErrorCallback = false;
+		updatePosition(transition.to);
+		if (transition.to == STARTED) {
+			mQuality.onStarted();
+		}
+		onStateChanged();
+	}
+
+	/*
+	 * Samples the native position on every state change. While seeking or
+	 * buffering the last known position (or the seek target) is held.
+	 */
+	private void updatePosition(int state) {
+		if (state == PREPARING || state == PREPARING_CONTENT) {
+			mPosition.sample(mPosition.getPosition(), getNativeDuration(), false);
+		} else if (GET_POSITION.allows(state)) {
+			int position;
+			try {
+				position = mMediaPlayer.getCurrentPosition();
+			} catch (IllegalStateException e) {
+				position = 0;
+			}
+			mPosition.sample(position, getNativeDuration(), state == STARTED
+					&& !mBuffering);
+		} else {
+			mPosition.sample(0, 0, false);
 		}
 	}
 
+	/**
+	 * Publishes the current state to the {@link StateChangeListener}, which
+	 * hears about it on the {@link Scheduler}'s thread. Intermediate states
+	 * which are superseded before it gets to run are never delivered.
+	 */
+	protected void onStateChanged() {
+		mPublisher.publish(getStateMask());
+	}
+
 	public static String getStateName(int state) {
 		switch (state) {
 		case END:
@@ -255,12 +435,13 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 	}
 
 	@Override
-	public synchronized String getStateName() {
+	public String getStateName() {
 		return getStateName(getInternalState());
 	}
 
 	@Override
 	public synchronized void reset() {
+		cancelContentLoad();
 		try {
 			if (getState() != IDLE) {
 				mMediaPlayer.reset();
@@ -270,11 +451,15 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 			Log.e(getStateName(), e);
 			throw e;
 		}
+		mWaitingToRecover = false;
+		mKeepQuality = false;
+		mBuffering = false;
 		setState(IDLE);
 	}
 
 	@Override
 	public synchronized void release() {
+		cancelContentLoad();
 		mMediaPlayer.release();
 		setState(END);
 	}
@@ -282,97 +467,177 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 	@Override
 	public synchronized void prepareAsync() throws IllegalStateException {
 		int state = getInternalState();
-		if ((state & (INITIALIZED | STOPPED)) != 0) {
-			mMediaPlayer.prepareAsync();
-			setState(PREPARING);
-		} else if (state == LOADING_CONTENT) {
-			setState(PREPARING_CONTENT);
+		if (PREPARE_CONTENT.allows(state)) {
+			commitTransition(PREPARE_CONTENT);
 		} else {
-			throw illegalState("prepareAsync");
+			checkTransition(PREPARE_ASYNC);
+			mPrepareTraceId = Tracer.currentTraceId();
+			mPrepareStartedAt = Tracer.now();
+			mMediaPlayer.prepareAsync();
+			commitTransition(PREPARE_ASYNC);
 		}
 	}
 
-	private static final int START_BITMASK = PREPARED | STARTED | PAUSED
-			| PLAYBACK_COMPLETED;
-
 	@Override
 	public synchronized void start() throws IllegalStateException {
-		int state = getInternalState();
-		if ((state & START_BITMASK) != 0) {
-			mMediaPlayer.start();
-			setState(STARTED);
-		} else {
-			throw illegalState("start");
-		}
+		checkTransition(START);
+		mMediaPlayer.start();
+		commitTransition(START);
 	}
 
-	private static final int PAUSE_BITMASK = STARTED | PAUSED;
-
 	@Override
 	public synchronized void pause() throws IllegalStateException {
-		int state = getInternalState();
-		if ((state & PAUSE_BITMASK) != 0) {
-			mMediaPlayer.pause();
-			setState(PAUSED);
-		} else {
-			throw illegalState("pause");
-		}
+		checkTransition(PAUSE);
+		mMediaPlayer.pause();
+		commitTransition(PAUSE);
 	}
 
-	private static final int STOP_BITMASK = PREPARED | STARTED | STOPPED
-			| PAUSED | PLAYBACK_COMPLETED;
-
 	@Override
 	public synchronized void stop() throws IllegalStateException {
-		int state = getInternalState();
-		if ((state & (STOP_BITMASK)) != 0) {
-			mMediaPlayer.stop();
-			setState(STOPPED);
-		} else {
-			throw illegalState("stop");
+		checkTransition(STOP);
+		mMediaPlayer.stop();
+		commitTransition(STOP);
+	}
+
+	/**
+	 * Seeks to {@code msec}. At most one native seek is in flight at a time:
+	 * seeks asked for while one is running just replace its target, and the
+	 * player jumps to the latest target once the running seek completes,
+	 * without leaving the preparing state in between.
+	 */
+	@Override
+	public synchronized void seekTo(int msec) {
+		if (mSeeking) {
+			mPendingSeek = msec;
+			mPosition.sample(msec, getNativeDuration(), false);
+			return;
 		}
+		int state = checkTransition(SEEK_TO);
+		mQuality.onSeekStarted();
+		mPrevState = state;
+		mSeeking = true;
+		mPosition.sample(msec, getNativeDuration(), false);
+		commitTransition(SEEK_TO);
+		mMediaPlayer.seekTo(msec);
 	}
 
-	private static final int SEEK_TO_BITMASK = PREPARED | STARTED | PAUSED
-			| PLAYBACK_COMPLETED;
+	/**
+	 * @return Whether a seek is in flight.
+	 */
+	protected synchronized boolean isSeeking() {
+		return mSeeking;
+	}
 
+	/*
+	 * The getters below don't take the player's lock. The MediaPlayer
+	 * guards its own native calls, and a player released underneath us
+	 * just reads as stopped.
+	 */
 	@Override
-	public synchronized void seekTo(int msec) {
-		int state = getInternalState();
-		if ((state & SEEK_TO_BITMASK) != 0) {
-			mPrevState = getInternalState();
-			setState(PREPARING);
-			mMediaPlayer.seekTo(msec);
-		} else {
-			throw illegalState("seekTo");
+	public boolean isPlaying() {
+		if (getInternalState() == END) {
+			return false;
+		}
+		try {
+			return mMediaPlayer.isPlaying();
+		} catch (IllegalStateException e) {
+			return false;
 		}
 	}
 
+	/**
+	 * @return The position extrapolated by this player's
+	 *         {@link PositionModel}, which asks the native player again every
+	 *         {@link PositionModel#RESYNC_INTERVAL} while playing.
+	 */
 	@Override
-	public synchronized boolean isPlaying() {
-		return mMediaPlayer.isPlaying();
+	public int getCurrentPosition() {
+		if (mPosition.needsResync() && getInternalState() == STARTED) {
+			try {
+				mPosition.resync(mMediaPlayer.getCurrentPosition());
+			} catch (IllegalStateException e) {
+				return 0;
+			}
+		}
+		return mPosition.getPosition();
 	}
 
-	private static final int GET_POSITION_BITMASK = STARTED | PAUSED | STOPPED
-			| PLAYBACK_COMPLETED;
+	public PositionModel getPositionModel() {
+		return mPosition;
+	}
 
-	@Override
-	public synchronized int getCurrentPosition() {
-		int state = getInternalState();
-		if ((state & GET_POSITION_BITMASK) != 0) {
-			return mMediaPlayer.getCurrentPosition();
+	/**
+	 * @return How playback of the current data source has gone so far.
+	 */
+	public PlaybackQuality getPlaybackQuality() {
+		return mQuality.snapshot();
+	}
+
+	/**
+	 * Starts the time to first audio clock for the current data source. If
+	 * the player is already playing, its time to first audio is zero.
+	 */
+	public void markPlayRequested() {
+		mQuality.onPlayRequested();
+	}
+
+	/**
+	 * Marks a player which has failed as going to be loaded again, so that
+	 * until it is (or it is reset) it reports that it will play if
+	 * {@code resume} is true.
+	 */
+	public synchronized void setWaitingToRecover(boolean resume) {
+		mWaitingToRecover = resume;
+		onStateChanged();
+	}
+
+	public boolean isWaitingToRecover() {
+		return mWaitingToRecover;
+	}
+
+	/*
+	 * The next data source is the same song again, so its playback quality
+	 * record carries on, counting the retry, instead of starting over.
+	 */
+	synchronized void keepPlaybackQuality() {
+		keepPlaybackQuality(true);
+	}
+
+	/*
+	 * As above; a switch to another rendition of the song isn't a retry.
+	 */
+	synchronized void keepPlaybackQuality(boolean retry) {
+		mKeepQuality = true;
+		if (retry) {
+			mQuality.onRetry();
 		}
-		return 0;
 	}
 
-	private static final int GET_DURATION_BITMASK = PREPARED | STARTED | PAUSED
-			| PLAYBACK_COMPLETED;
+	/*
+	 * For errors which a subclass gets over by itself, without telling the
+	 * listener, so that the outage still counts against the song.
+	 */
+	synchronized void recordError() {
+		mQuality.onError();
+	}
 
 	@Override
-	public synchronized int getDuration() {
-		int state = getInternalState();
-		if ((state & GET_DURATION_BITMASK) != 0) {
-			return mMediaPlayer.getDuration();
+	public int getDuration() {
+		return getNativeDuration();
+	}
+
+	/*
+	 * The duration of what this player's own MediaPlayer has loaded, which
+	 * is what positions are clamped to. Subclasses may report a longer
+	 * duration, such as a whole playlist's.
+	 */
+	private int getNativeDuration() {
+		if (GET_DURATION.allows(getInternalState())) {
+			try {
+				return mMediaPlayer.getDuration();
+			} catch (IllegalStateException e) {
+				return 0;
+			}
 		}
 		return 0;
 	}
@@ -383,52 +648,102 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 	}
 
 	@Override
-	public synchronized void setDataSource(final Context context, final Uri uri)
+	public synchronized void setDataSource(Context context, Uri uri)
 			throws IllegalStateException, IOException,
 			IllegalArgumentException, SecurityException {
-		if (uri.getScheme().equals("content")) {
-			setState(LOADING_CONTENT);
-			(new Thread() {
-				@Override
-				public void run() {
-					synchronized (StatelyPlayer.this) {
-                        final ContentProviderClient contentProviderClient = context.getContentResolver().acquireContentProviderClient(uri);
+		if (mKeepQuality) {
+			mKeepQuality = false;
+		} else {
+			mQuality.reset();
+		}
+		Tracer.Span span = Tracer.begin("player.setDataSource");
+		try {
+			if (uri.getScheme().equals("content")) {
+				setState(LOADING_CONTENT);
+				loadContent(context, uri);
+			} else if (uri.getScheme().equals("http") || uri.getScheme().equals("https")) {
+				mMediaPlayer.setDataSource(uri.toString());
+				setState(INITIALIZED);
+			} else {
+				mMediaPlayer.setDataSource(context, uri);
+				setState(INITIALIZED);
+			}
+		} finally {
+			span.end();
+		}
+	}
+
+	/*
+	 * Opens content on the shared ContentLoader. Only the most recent load
+	 * for this player is used; anything older is cancelled, or ignored if it
+	 * has already started.
+	 */
+	private void loadContent(Context context, final Uri uri) {
+		cancelContentLoad();
+		final int generation = mContentGeneration;
+		mContentTraceId = Tracer.currentTraceId();
+		mContentStartedAt = Tracer.now();
+		mContentLoad = ContentLoader.getInstance().load(context, uri,
+				new ContentLoader.Callback() {
+
+					@Override
+					public void onContentLoaded(
+							ContentLoader.Descriptor descriptor) {
 						try {
-							ParcelFileDescriptor fd = contentProviderClient.openFile(
-											uri, "r");
-							mMediaPlayer.setDataSource(fd.getFileDescriptor());
-							int state = getInternalState();
-							setState(INITIALIZED);
-							if ((state & PREPARING_CONTENT) != 0) {
-								prepareAsync();
-							}
-						} catch (Exception e) {
-							Log.e("Whoops", e);
-							try {
-								mMediaPlayer.setDataSource(uri.toString());
-								int state = getInternalState();
-								setState(INITIALIZED);
-								if ((state & PREPARING_CONTENT) != 0) {
-									prepareAsync();
-								}
-							} catch (Exception e1) {
-								Log.e("Whoops", e1);
-							}
+							finishContentLoad(generation, uri, descriptor);
 						} finally {
-                            contentProviderClient.release();
-                        }
-                    }
-				}
-			}).start();
-		} else if (uri.getScheme().equals("http") || uri.getScheme().equals("https")) {
+							descriptor.release();
+						}
+					}
+
+					@Override
+					public void onContentFailed(Exception e) {
+						finishContentLoad(generation, uri, null);
+					}
+				});
+	}
+
+	private void cancelContentLoad() {
+		mContentGeneration++;
+		if (mContentLoad != null) {
+			mContentLoad.cancel(false);
+			mContentLoad = null;
+		}
+	}
+
+	private synchronized void finishContentLoad(int generation, Uri uri,
+			ContentLoader.Descriptor descriptor) {
+		int state = getInternalState();
+		if (generation != mContentGeneration
+				|| (state != LOADING_CONTENT && state != PREPARING_CONTENT)) {
+			return;
+		}
+		mContentLoad = null;
+		Tracer.record("player.loadContent", mContentTraceId,
+				mContentStartedAt, Tracer.now());
+		try {
+			if (descriptor == null) {
+				throw new IOException("Couldn't open " + uri);
+			}
+			mMediaPlayer.setDataSource(descriptor.getFileDescriptor());
+		} catch (Exception e) {
+			Log.e("Whoops", e);
+			try {
 				mMediaPlayer.setDataSource(uri.toString());
-				setState(INITIALIZED);
-		} else { 
-			mMediaPlayer.setDataSource(context, uri); 
-			setState(INITIALIZED); 
-		} 
+			} catch (Exception e1) {
+				Log.e("Whoops", e1);
+				return;
+			}
+		}
+		setState(INITIALIZED);
+		if (state == PREPARING_CONTENT) {
+			prepareAsync();
+			// Runs on the loader's thread, so the request has to be put back.
+			mPrepareTraceId = mContentTraceId;
+		}
 	}
 
+
 	@Override
 	public synchronized void setOnErrorListener(OnErrorListener errorListener) {
 		mListenerCollection.errorListener = errorListener;
@@ -465,6 +780,7 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 
 	@Override
 	public synchronized void onBufferingUpdate(MediaPlayer mp, int percent) {
+		mQuality.onBufferingUpdate(percent);
 		if (mListenerCollection.bufferingUpdateListener != null) {
 			mListenerCollection.bufferingUpdateListener.onBufferingUpdate(mp,
 					percent);
@@ -481,45 +797,58 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 
 	@Override
 	public synchronized boolean onError(MediaPlayer mp, int what, int extra) {
+		boolean handled = false;
+		mQuality.onError();
 		if (mListenerCollection.errorListener != null) {
 			mInErrorCallback = true;
-			if (mListenerCollection.errorListener.onError(mp, what, extra)) {
-				if (mInErrorCallback) {
-					setState(ERROR);
-				}
-				return true;
-			}
+			handled = mListenerCollection.errorListener.onError(mp, what,
+					extra);
+		}
+		if (!handled || mInErrorCallback) {
+			setState(ERROR);
 		}
-		setState(ERROR);
-		return false;
+		return handled;
 	}
 
 	@Override
+	@SuppressLint("InlinedApi")
 	public synchronized boolean onInfo(MediaPlayer mp, int what, int extra) {
 		boolean handled = false;
 		if (mListenerCollection.infoListener != null) {
-			handled = mListenerCollection.infoListener.onInfo(mp, what, extra);
+			handled = mListenerCollection.infoListener.onInfo(mp, what,
+					extra);
 		}
 
 		switch (what) {
 		case MediaPlayer.MEDIA_INFO_BUFFERING_START:
 			mBuffering = true;
+			mQuality.onStallStarted();
 			setState(PREPARING);
-			return true;
+			handled = true;
+			break;
 		case MediaPlayer.MEDIA_INFO_BUFFERING_END:
 			mBuffering = false;
+			mQuality.onStallEnded();
 			setState(STARTED);
-			return true;
+			handled = true;
+			break;
 		case MediaPlayer.MEDIA_INFO_NOT_SEEKABLE:
 			mNotSeekable = true;
-			return true;
-		default:
-			return handled;
+			handled = true;
+			break;
+		case MediaPlayer.MEDIA_INFO_STARTED_AS_NEXT:
+			setState(STARTED);
+			handled = true;
+			break;
 		}
+		return handled;
 	}
 
 	@Override
 	public synchronized void onPrepared(MediaPlayer mp) {
+		Tracer.record("player.prepare", mPrepareTraceId, mPrepareStartedAt,
+				Tracer.now());
+		mPrepareTraceId = Tracer.NO_TRACE;
 		if (mListenerCollection.preparedListener != null) {
 			mListenerCollection.preparedListener.onPrepared(mp);
 		}
@@ -528,6 +857,14 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 
 	@Override
 	public synchronized void onSeekComplete(MediaPlayer mp) {
+		if (mSeeking && mPendingSeek >= 0) {
+			int target = mPendingSeek;
+			mPendingSeek = -1;
+			mMediaPlayer.seekTo(target);
+			return;
+		}
+		mSeeking = false;
+		mQuality.onSeekCompleted();
 		setState(mPrevState);
 		if (mListenerCollection.seekCompleteListener != null) {
 			mListenerCollection.seekCompleteListener.onSeekComplete(mp);
@@ -540,13 +877,13 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
 	}
 
 	@Override
-	public synchronized boolean equals(MediaPlayer mp) {
+	public boolean equals(MediaPlayer mp) {
 		return mp == mMediaPlayer;
 	}
 
 	@Override
 	public boolean isWaitingToPlay() {
-		return super.isWaitingToPlay() || mBuffering;
+		return super.isWaitingToPlay() || mBuffering || mWaitingToRecover;
 	}
 
     private void setWakeLock(Context context) {
@@ -560,7 +897,18 @@ public class StatelyPlayer extends Player implements OnBufferingUpdateListener,
         }
     }
 
-	protected synchronized MediaPlayer getBarePlayer() {
+	/**
+	 * Has the platform start {@code next} as soon as this player completes,
+	 * or stops it from doing so if {@code next} is null. {@code next} must be
+	 * prepared.
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	protected synchronized void setNextMediaPlayer(StatelyPlayer next) {
+		mMediaPlayer.setNextMediaPlayer(next != null ? next.getBarePlayer()
+				: null);
+	}
+
+	protected MediaPlayer getBarePlayer() {
 		return mMediaPlayer;
 	}
 
@@ -24,8 +24,8 @@ import android.net.Uri;
 public class SynchronousPlayer extends StatelyPlayer implements
 		OnPreparedListener, OnSeekCompleteListener {
 
-	private boolean mShouldPlayWhenPrepared;
-	private int mShouldSkipWhenPrepared;
+	private volatile boolean mShouldPlayWhenPrepared;
+	private volatile int mShouldSkipWhenPrepared;
 	private Uri mShouldSetDataSourceUri;
 	private Context mShouldSetPrepareContext;
 
@@ -42,7 +42,9 @@ public class SynchronousPlayer extends StatelyPlayer implements
 	@Override
 	public synchronized void onSeekComplete(MediaPlayer mp) {
 		super.onSeekComplete(mp);
-		startIfNecessary();
+		if (!isSeeking()) {
+			startIfNecessary();
+		}
 	}
 
 	@Override
@@ -101,6 +103,27 @@ public class SynchronousPlayer extends StatelyPlayer implements
 		}
 	}
 
+	/**
+	 * Loads {@code uri} again after an error and, if {@code play} is true,
+	 * starts it from {@code position}; otherwise it is left prepared at
+	 * {@code position}. The playback quality record carries on, counting
+	 * the retry, instead of starting over.
+	 */
+	public synchronized boolean recover(Context context, Uri uri,
+			int position, boolean play) {
+		reset();
+		keepPlaybackQuality();
+		if (play) {
+			return prepareAndPlay(context, uri, position);
+		} else if (prepare(context, uri)) {
+			if (position != 0) {
+				seekTo(position);
+			}
+			return true;
+		}
+		return false;
+	}
+
 	@Override
 	public synchronized void start() {
 		if (getState() == PREPARING) {
@@ -119,8 +142,11 @@ public class SynchronousPlayer extends StatelyPlayer implements
 	@Override
 	public synchronized void seekTo(int msec) {
 		int state = getState();
-		if (state == PREPARING || state == INITIALIZED || state == STOPPED
-				|| state == LOADING_CONTENT || state == PREPARING_CONTENT) {
+		if (isSeeking()) {
+			super.seekTo(msec);
+		} else if (state == PREPARING || state == INITIALIZED
+				|| state == STOPPED || state == LOADING_CONTENT
+				|| state == PREPARING_CONTENT) {
 			mShouldSkipWhenPrepared = msec;
 			if (state == INITIALIZED || state == STOPPED) {
 				prepareAsync();
@@ -137,7 +163,10 @@ public class SynchronousPlayer extends StatelyPlayer implements
 
 	@Override
 	public synchronized boolean conditionalPause() {
-		if (mShouldPlayWhenPrepared) {
+		if (isWaitingToRecover()) {
+			setWaitingToRecover(false);
+			return true;
+		} else if (mShouldPlayWhenPrepared) {
 			mShouldPlayWhenPrepared = false;
 			return true;
 		} else if (getState() == STARTED) {
@@ -148,7 +177,7 @@ public class SynchronousPlayer extends StatelyPlayer implements
 	}
 
 	@Override
-	public synchronized boolean conditionalPlay() {
+	public boolean conditionalPlay() {
 		try {
 			start();
 		} catch (Exception e) {
@@ -159,7 +188,10 @@ public class SynchronousPlayer extends StatelyPlayer implements
 
 	@Override
 	public synchronized boolean conditionalStop() {
-		if (mShouldPlayWhenPrepared) {
+		if (isWaitingToRecover()) {
+			setWaitingToRecover(false);
+			return true;
+		} else if (mShouldPlayWhenPrepared) {
 			mShouldPlayWhenPrepared = false;
 			return true;
 		}
@@ -173,7 +205,7 @@ public class SynchronousPlayer extends StatelyPlayer implements
 	}
 
 	@Override
-	public synchronized boolean isWaitingToPlay() {
+	public boolean isWaitingToPlay() {
 		return super.isWaitingToPlay()
 				|| (mShouldSkipWhenPrepared != 0 | mShouldPlayWhenPrepared);
 	}
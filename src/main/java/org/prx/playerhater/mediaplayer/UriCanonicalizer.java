@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.mediaplayer;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.prx.playerhater.util.Log;
+
+import android.net.Uri;
+
+/**
+ * A {@link MediaPlayerPool.KeyCanonicalizer} which drops the fragment and
+ * any ignored query parameters (tracking parameters and the like) from a
+ * {@link Uri}, and which can follow http redirects.
+ * <p>
+ * Redirects are followed once, in the background, the first time a
+ * {@link Uri} is seen, and where they lead is cached. Until then the
+ * {@link Uri} is its own key; once a redirect is learned the
+ * {@link OnKeyChangedListener} is told, so that players already prepared
+ * under the old key can be moved with
+ * {@link MediaPlayerPool#rekey(Uri, Uri)}.
+ */
+public class UriCanonicalizer implements MediaPlayerPool.KeyCanonicalizer {
+
+	public interface OnKeyChangedListener {
+
+		/**
+		 * Called on a background thread when a redirect from {@code oldKey}
+		 * to {@code newKey} has been learned.
+		 */
+		public void onKeyChanged(Uri oldKey, Uri newKey);
+	}
+
+	private static final int MAX_REDIRECTS = 64;
+	private static final int TIMEOUT = 10000;
+
+	private static ExecutorService sResolver;
+
+	private final Set<String> mIgnoredParameters = new HashSet<String>();
+	private final Set<String> mIgnoredPrefixes = new HashSet<String>();
+	private final boolean mResolveRedirects;
+	private final Set<Uri> mResolving = new HashSet<Uri>();
+	private final Map<Uri, Uri> mRedirects = new LinkedHashMap<Uri, Uri>(16,
+			0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Uri, Uri> eldest) {
+			return size() > MAX_REDIRECTS;
+		}
+	};
+	private OnKeyChangedListener mListener;
+
+	/**
+	 * @param ignoredParameters
+	 *            The names of query parameters which don't change what a
+	 *            {@link Uri} plays. A name ending in {@code *} matches every
+	 *            parameter starting with the rest of it.
+	 * @param resolveRedirects
+	 *            Whether to follow http redirects. Doing so costs a request
+	 *            to the server for every new {@link Uri}, which some
+	 *            tracking services count as a download.
+	 */
+	public UriCanonicalizer(String[] ignoredParameters,
+			boolean resolveRedirects) {
+		for (String parameter : ignoredParameters) {
+			parameter = parameter.trim();
+			if (parameter.endsWith("*")) {
+				mIgnoredPrefixes.add(parameter.substring(0,
+						parameter.length() - 1));
+			} else if (parameter.length() > 0) {
+				mIgnoredParameters.add(parameter);
+			}
+		}
+		mResolveRedirects = resolveRedirects;
+	}
+
+	public synchronized void setOnKeyChangedListener(
+			OnKeyChangedListener listener) {
+		mListener = listener;
+	}
+
+	@Override
+	public synchronized Uri getKey(Uri uri) {
+		Uri key = strip(uri);
+		Uri redirect = mRedirects.get(key);
+		if (redirect != null) {
+			return redirect;
+		}
+		if (mResolveRedirects && isHttp(key) && mResolving.add(key)) {
+			final Uri from = key;
+			getResolver().execute(new Runnable() {
+
+				@Override
+				public void run() {
+					resolve(from);
+				}
+			});
+		}
+		return key;
+	}
+
+	private void resolve(Uri key) {
+		Uri location = strip(followRedirect(key));
+		OnKeyChangedListener listener;
+		synchronized (this) {
+			mResolving.remove(key);
+			mRedirects.put(key, location);
+			listener = mListener;
+		}
+		if (listener != null && !location.equals(key)) {
+			Log.d("Learned that " + key + " redirects to " + location);
+			listener.onKeyChanged(key, location);
+		}
+	}
+
+	private Uri strip(Uri uri) {
+		String query = uri.getEncodedQuery();
+		if (query == null && uri.getEncodedFragment() == null) {
+			return uri;
+		}
+		StringBuilder kept = new StringBuilder();
+		if (query != null) {
+			for (String parameter : query.split("&")) {
+				int equals = parameter.indexOf('=');
+				String name = Uri.decode(equals < 0 ? parameter : parameter
+						.substring(0, equals));
+				if (name.length() > 0 && !isIgnored(name)) {
+					if (kept.length() > 0) {
+						kept.append('&');
+					}
+					kept.append(parameter);
+				}
+			}
+		}
+		return uri.buildUpon()
+				.encodedQuery(kept.length() > 0 ? kept.toString() : null)
+				.fragment(null).build();
+	}
+
+	private boolean isIgnored(String name) {
+		if (mIgnoredParameters.contains(name)) {
+			return true;
+		}
+		for (String prefix : mIgnoredPrefixes) {
+			if (name.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isHttp(Uri uri) {
+		String scheme = uri.getScheme();
+		return "http".equalsIgnoreCase(scheme)
+				|| "https".equalsIgnoreCase(scheme);
+	}
+
+	private static Uri followRedirect(Uri uri) {
+		HttpURLConnection connection = null;
+		try {
+			URL url = new URL(uri.toString());
+			connection = (HttpURLConnection) url.openConnection();
+			connection.setInstanceFollowRedirects(false);
+			connection.setRequestMethod("HEAD");
+			connection.setConnectTimeout(TIMEOUT);
+			connection.setReadTimeout(TIMEOUT);
+			int status = connection.getResponseCode();
+			String location = connection.getHeaderField("Location");
+			if (status >= 300 && status < 400 && location != null) {
+				return Uri.parse(new URL(url, location).toString());
+			}
+		} catch (Exception e) {
+			Log.d("Couldn't follow redirects for " + uri + ": " + e);
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+		return uri;
+	}
+
+	private static synchronized ExecutorService getResolver() {
+		if (sResolver == null) {
+			sResolver = Executors.newSingleThreadExecutor();
+		}
+		return sResolver;
+	}
+}
@@ -22,6 +22,7 @@ import android.net.Uri;
 import org.prx.playerhater.PlayerHater;
 import org.prx.playerhater.PlayerHaterPlugin;
 import org.prx.playerhater.Song;
+import org.prx.playerhater.mediaplayer.PlaybackQuality;
 
 /**
  * A simple helper for writing {@linkplain PlayerHaterPlugin}s
@@ -133,6 +134,10 @@ public abstract class AbstractPlugin implements PlayerHaterPlugin {
     public void onSongFinished(Song song, int reason) {
     }
 
+    @Override
+    public void onPlaybackQualityReport(Song song, PlaybackQuality quality) {
+    }
+
     @Override
     public void onChangesComplete() {
     }
@@ -27,6 +27,7 @@ import android.os.Message;
 import org.prx.playerhater.PlayerHater;
 import org.prx.playerhater.PlayerHaterPlugin;
 import org.prx.playerhater.Song;
+import org.prx.playerhater.mediaplayer.PlaybackQuality;
 
 import java.util.Arrays;
 import java.util.HashSet;
@@ -55,6 +56,7 @@ public class BackgroundedPlugin extends HandlerThread implements
     private static final int SERVICE_STOPPING = 17;
     private static final int CHANGES_COMPLETE = 18;
     private static final int TRANSPORT_CONTROL_FLAGS_CHANGED = 19;
+    private static final int QUALITY_REPORT = 20;
     private static final int CHANGES_COMPLETE_INTERNAL = -1;
     private static final Integer[] DEFAULT_FOREGROUND_ACTIONS = {
             CHANGES_COMPLETE, SERVICE_BOUND, PLAYER_HATER_LOADED,
@@ -275,6 +277,18 @@ public class BackgroundedPlugin extends HandlerThread implements
         mHandler.sendTargettedEmptyMessage(CHANGES_COMPLETE_INTERNAL);
     }
 
+    @Override
+    public void onPlaybackQualityReport(Song song, PlaybackQuality quality) {
+        mHandler.removeTargettedMessages(CHANGES_COMPLETE_INTERNAL);
+        if (shouldHandleMessage(QUALITY_REPORT)) {
+            mPlugin.onPlaybackQualityReport(song, quality);
+        } else {
+            mHandler.obtainTargettedMessage(QUALITY_REPORT,
+                    new QualityReportObject(song, quality)).sendToTarget();
+        }
+        mHandler.sendTargettedEmptyMessage(CHANGES_COMPLETE_INTERNAL);
+    }
+
     @Override
     public void onTransportControlFlagsChanged(int transportControlFlags) {
         mHandler.removeTargettedMessages(CHANGES_COMPLETE_INTERNAL);
@@ -351,6 +365,10 @@ public class BackgroundedPlugin extends HandlerThread implements
             case SONG_FINISHED:
                 mPlugin.onSongFinished((Song) msg.obj, msg.arg1);
                 break;
+            case QUALITY_REPORT:
+                QualityReportObject report = (QualityReportObject) msg.obj;
+                mPlugin.onPlaybackQualityReport(report.song, report.quality);
+                break;
             case PLAYER_HATER_LOADED:
                 LoadedObject o = (LoadedObject) msg.obj;
                 mPlugin.onPlayerHaterLoaded(o.context, o.playerHater);
@@ -380,6 +398,16 @@ public class BackgroundedPlugin extends HandlerThread implements
         }
     }
 
+    private static class QualityReportObject {
+        public final Song song;
+        public final PlaybackQuality quality;
+
+        public QualityReportObject(Song song, PlaybackQuality quality) {
+            this.song = song;
+            this.quality = quality;
+        }
+    }
+
     private static class TargetableHandler extends Handler {
 
         public TargetableHandler() {
@@ -23,6 +23,7 @@ import android.util.SparseArray;
 import org.prx.playerhater.PlayerHater;
 import org.prx.playerhater.PlayerHaterPlugin;
 import org.prx.playerhater.Song;
+import org.prx.playerhater.mediaplayer.PlaybackQuality;
 
 import java.util.HashSet;
 import java.util.Iterator;
@@ -280,6 +281,17 @@ public class PluginCollection implements PlayerHaterPlugin {
         }
     }
 
+    @Override
+    public void onPlaybackQualityReport(Song song, PlaybackQuality quality) {
+        mLock.readLock().lock();
+        try {
+            for (PlayerHaterPlugin plugin : mPlugins)
+                plugin.onPlaybackQualityReport(song, quality);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
     @Override
     public void onTransportControlFlagsChanged(int transportControlFlags) {
         mLock.readLock().lock();
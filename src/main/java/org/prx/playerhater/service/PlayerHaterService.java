@@ -31,6 +31,9 @@ import org.prx.playerhater.ipc.ClientPlugin;
 import org.prx.playerhater.ipc.IPlayerHaterClient;
 import org.prx.playerhater.ipc.PlayerHaterClient;
 import org.prx.playerhater.ipc.PlayerHaterServer;
+import org.prx.playerhater.mediaplayer.PlaybackQuality;
+import org.prx.playerhater.mediaplayer.MediaPlayerPoolStats;
+import org.prx.playerhater.mediaplayer.PlaybackQualityStats;
 import org.prx.playerhater.mediaplayer.PlaylistSupportingPlayer;
 import org.prx.playerhater.plugins.BackgroundedPlugin;
 import org.prx.playerhater.plugins.PluginCollection;
@@ -223,8 +226,32 @@ public abstract class PlayerHaterService extends Service implements
 
     @Override
     public int getCurrentPosition() {
-        return peekMediaPlayer() != null ? getMediaPlayer()
-                .getCurrentPosition() : 0;
+        PlaylistSupportingPlayer player = peekMediaPlayer();
+        return player != null ? player.getCurrentPosition() : 0;
+    }
+
+    private final PlaybackQualityStats mQualityStats = new PlaybackQualityStats();
+
+    /**
+     * @return The quality reports for every song played since this service
+     *         started, added up.
+     */
+    public PlaybackQualityStats getPlaybackQualityStats() {
+        return mQualityStats.snapshot();
+    }
+
+    /**
+     * @return The counters of the pool players come from, or {@code null}
+     *         if this service doesn't pool its players.
+     */
+    public MediaPlayerPoolStats getMediaPlayerPoolStats() {
+        return null;
+    }
+
+    /**
+     * Zeroes the counters of the pool players come from, if there is one.
+     */
+    public void resetMediaPlayerPoolStats() {
     }
 
 	/* END Player State Methods */
@@ -383,6 +410,7 @@ public abstract class PlayerHaterService extends Service implements
     }
 
     protected void onSongChanged(Song nowPlaying) {
+        mSongTitle = nowPlaying != null ? nowPlaying.getTitle() : null;
         getPlugin().onSongChanged(nowPlaying);
     }
 
@@ -392,6 +420,11 @@ public abstract class PlayerHaterService extends Service implements
         }
     }
 
+    protected void onPlaybackQualityReport(Song song, PlaybackQuality quality) {
+        mQualityStats.add(quality);
+        getPlugin().onPlaybackQualityReport(song, quality);
+    }
+
     public abstract Song getNextSong();
 
     protected void onNextSongChanged(Song nextSong) {
@@ -430,21 +463,30 @@ public abstract class PlayerHaterService extends Service implements
     private int mLastState = PlayerHater.STATE_IDLE;
     private int mInTransaction = PlayerHater.STATE_INVALID;
 
+    /*
+     * Players report their state on the scheduler's thread, where the state
+     * watcher calls onStateChanged with its own lock held, so transactions
+     * take the same lock.
+     */
     protected boolean startTransaction() {
-        if (mInTransaction == PlayerHater.STATE_INVALID) {
-            mInTransaction = mLastState;
-            return true;
-        } else {
-            return false;
+        synchronized (mPlayerStateWatcher) {
+            if (mInTransaction == PlayerHater.STATE_INVALID) {
+                mInTransaction = mLastState;
+                return true;
+            } else {
+                return false;
+            }
         }
     }
 
     protected void commitTransaction() {
-        if (mInTransaction != PlayerHater.STATE_INVALID) {
-            int nextState = mLastState;
-            mLastState = mInTransaction;
-            mInTransaction = PlayerHater.STATE_INVALID;
-            onStateChanged(nextState);
+        synchronized (mPlayerStateWatcher) {
+            if (mInTransaction != PlayerHater.STATE_INVALID) {
+                int nextState = mLastState;
+                mLastState = mInTransaction;
+                mInTransaction = PlayerHater.STATE_INVALID;
+                onStateChanged(nextState);
+            }
         }
     }
 
@@ -480,11 +522,22 @@ public abstract class PlayerHaterService extends Service implements
         getPlugin().onDurationChanged(duration);
     }
 
+    /*
+     * Called with the watcher's lock held, so the song's title is kept from
+     * when it changed rather than asked for here.
+     */
+    private volatile String mSongTitle;
+
+    @Override
+    public void onTitleChanged(String title) {
+        getPlugin().onTitleChanged(title != null ? title : mSongTitle);
+    }
+
     // ///////////////////////
     // For dealing with
     // MediaPlayers.
 
-    private PlaylistSupportingPlayer mMediaPlayer;
+    private volatile PlaylistSupportingPlayer mMediaPlayer;
 
     synchronized protected PlaylistSupportingPlayer getMediaPlayer() {
         if (mMediaPlayer == null) {
@@ -493,7 +546,7 @@ public abstract class PlayerHaterService extends Service implements
         return mMediaPlayer;
     }
 
-    synchronized protected PlaylistSupportingPlayer peekMediaPlayer() {
+    protected PlaylistSupportingPlayer peekMediaPlayer() {
         return mMediaPlayer;
     }
 
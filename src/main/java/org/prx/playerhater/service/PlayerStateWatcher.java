@@ -23,6 +23,7 @@ import org.prx.playerhater.mediaplayer.StatelyPlayer;
 public class PlayerStateWatcher implements StateChangeListener {
     private int mCurrentState = PlayerHater.STATE_IDLE;
     private int mCurrentDuration = 0;
+    private String mCurrentTitle;
     private PlayerHaterStateListener mListener;
     private Player mMediaPlayer;
 
@@ -38,13 +39,22 @@ public class PlayerStateWatcher implements StateChangeListener {
         void onStateChanged(int state);
 
         void onDurationChanged(int duration);
+
+        /**
+         * Called when the player moves on to something with another title
+         * than before, such as the next entry of a playlist; {@code null}
+         * if the player no longer knows better than the song.
+         */
+        void onTitleChanged(String title);
     }
 
-    public void setMediaPlayer(Player player) {
+    public synchronized void setMediaPlayer(Player player) {
         if (mMediaPlayer != null) {
             mMediaPlayer.setStateChangeListener(null);
         }
         mMediaPlayer = player;
+        // A new player starts from the song's own title.
+        mCurrentTitle = null;
         if (mMediaPlayer != null) {
             mMediaPlayer.setStateChangeListener(this);
             onStateChanged(mMediaPlayer, mMediaPlayer.getStateMask());
@@ -60,11 +70,17 @@ public class PlayerStateWatcher implements StateChangeListener {
 
     @Override
     public synchronized void onStateChanged(Player mediaPlayer, int state) {
+        // Deliveries are asynchronous, so one from a player we've already
+        // switched away from can still turn up here.
+        if (mediaPlayer != null && mediaPlayer != mMediaPlayer) {
+            return;
+        }
         boolean willPlay = StatelyPlayer.willPlay(state);
         boolean seekable = StatelyPlayer.seekable(state);
         state = StatelyPlayer.mediaPlayerState(state);
         if (mediaPlayer != null) {
             setCurrentDuration(mediaPlayer.getDuration());
+            setCurrentTitle(mediaPlayer.getTitle());
         } else {
             setCurrentDuration(0);
         }
@@ -118,6 +134,14 @@ public class PlayerStateWatcher implements StateChangeListener {
         }
     }
 
+    private void setCurrentTitle(String title) {
+        if (title == null ? mCurrentTitle != null : !title
+                .equals(mCurrentTitle)) {
+            mCurrentTitle = title;
+            mListener.onTitleChanged(title);
+        }
+    }
+
     private void notifyState() {
         if (mListener != null) {
             mListener.onStateChanged(mCurrentState);
@@ -20,6 +20,7 @@ import java.util.List;
 
 import org.prx.playerhater.Song;
 
+import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
@@ -29,6 +30,7 @@ public class SongQueue {
 	private static Handler sHandler;
 	private static final int CURRENT_SONG = 1;
 	private static final int NEXT_SONG = 2;
+	private static final int QUEUE_CHANGED = 3;
 
 	private static Handler getHandler() {
 		if (sHandler == null) {
@@ -38,13 +40,17 @@ public class SongQueue {
 
 				@Override
 				public void handleMessage(Message msg) {
-					SongMessage m = (SongMessage) msg.obj;
+					SongMessage m = msg.obj instanceof SongMessage ? (SongMessage) msg.obj
+							: null;
 					switch (msg.what) {
 					case CURRENT_SONG:
 						m.queue.sendSongChanged(m.song, m.oldSong);
 						break;
 					case NEXT_SONG:
 						m.queue.sendNextSongChanged(m.song, m.oldSong);
+						break;
+					case QUEUE_CHANGED:
+						((SongQueue) msg.obj).sendQueueChanged();
 					}
 				}
 
@@ -69,6 +75,15 @@ public class SongQueue {
 		public void onNowPlayingChanged(Song nowPlaying, Song nowPlayingWas);
 
 		public void onNextSongChanged(Song nextSong, Song nextSongWas);
+
+		/**
+		 * Called after any change to the order or contents of the queue,
+		 * after {@link #onNowPlayingChanged(Song, Song)} and
+		 * {@link #onNextSongChanged(Song, Song)} for the same change.
+		 * Several changes in quick succession may be reported by a single
+		 * call.
+		 */
+		public void onQueueChanged();
 	}
 
 	private int mPlayheadPosition = -1;
@@ -179,6 +194,14 @@ public class SongQueue {
 				nextSongChanged(notifyNext);
 			}
 		}
+		queueChanged();
+	}
+
+	private void queueChanged() {
+		if (mListener != null) {
+			getHandler().removeMessages(QUEUE_CHANGED, this);
+			getHandler().obtainMessage(QUEUE_CHANGED, this).sendToTarget();
+		}
 	}
 
 	private void currentSongChanged(boolean notify) {
@@ -207,6 +230,10 @@ public class SongQueue {
 		mListener.onNextSongChanged(newNextSong, oldNextSong);
 	}
 
+	private void sendQueueChanged() {
+		mListener.onQueueChanged();
+	}
+
 	private Song getNextSong() {
 		if (getPlayheadPosition() >= mSongs.size()
 				|| getPlayheadPosition() <= 0) {
@@ -228,6 +255,51 @@ public class SongQueue {
 		return false;
 	}
 
+	/**
+	 * Finds how far the closest song with {@code uri} is from the playhead,
+	 * looking outward in both directions so that nearby songs are found
+	 * without walking the entire queue.
+	 * 
+	 * @return The number of songs between the playhead and the song, or
+	 *         {@link Integer#MAX_VALUE} if it is not in the queue.
+	 */
+	public synchronized int getDistanceFromPlayhead(Uri uri) {
+		int playhead = Math.max(getPlayheadPosition() - 1, 0);
+		for (int distance = 0; distance < mSongs.size(); distance++) {
+			int ahead = playhead + distance;
+			if (ahead < mSongs.size()
+					&& uri.equals(mSongs.get(ahead).getUri())) {
+				return distance;
+			}
+			int behind = playhead - distance;
+			if (distance > 0 && behind >= 0
+					&& uri.equals(mSongs.get(behind).getUri())) {
+				return distance;
+			}
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @param offset
+	 *            The position of the song relative to the playhead: 0 for the
+	 *            now playing song, 1 for the next song, -1 for the previous
+	 *            song and so on.
+	 * @return The song at {@code offset}, or {@code null} if there is none.
+	 *         Unlike {@link #next()}, this does not wrap around the end of the
+	 *         queue.
+	 */
+	public synchronized Song getSongAtOffset(int offset) {
+		if (getPlayheadPosition() <= 0) {
+			return null;
+		}
+		int index = getPlayheadPosition() - 1 + offset;
+		if (index < 0 || index >= mSongs.size()) {
+			return null;
+		}
+		return mSongs.get(index);
+	}
+
 	public synchronized int size() {
 		return mSongs.size();
 	}
@@ -79,8 +79,58 @@ public class Config implements Parcelable {
 	}
 
 	private final Set<String> mPlugins = new HashSet<String>();
+	private int mMediaPlayerPoolSize;
+	private int mLookaheadSongs;
+	private boolean mLookaheadPrevious;
+	private int mIdlePlayerTimeout;
+	private boolean mGapless;
+	private int mMaxOverflowPlayers;
+	private int mExhaustionWait;
+	private String mIgnoredQueryParameters;
+	private boolean mResolveRedirects;
+	private boolean mTraceToLog;
+	private int mFadeDuration;
+	private int mCrossfadeDuration;
+	private String mFadeCurve;
+	private int mErrorRetries;
+	private int mErrorRetryDelay;
+	private int mErrorRetryMaxDelay;
+	private int mPlaylistCacheSize;
 
 	private Config(Context context) {
+		mMediaPlayerPoolSize = context.getResources().getInteger(
+				R.integer.zzz_ph_media_player_pool_size);
+		mLookaheadSongs = context.getResources().getInteger(
+				R.integer.zzz_ph_lookahead_songs);
+		mLookaheadPrevious = context.getResources().getBoolean(
+				R.bool.zzz_ph_lookahead_previous);
+		mIdlePlayerTimeout = context.getResources().getInteger(
+				R.integer.zzz_ph_idle_player_timeout);
+		mGapless = context.getResources().getBoolean(R.bool.zzz_ph_gapless);
+		mMaxOverflowPlayers = context.getResources().getInteger(
+				R.integer.zzz_ph_max_overflow_players);
+		mExhaustionWait = context.getResources().getInteger(
+				R.integer.zzz_ph_exhaustion_wait);
+		mIgnoredQueryParameters = context.getResources().getString(
+				R.string.zzz_ph_ignored_query_parameters);
+		mResolveRedirects = context.getResources().getBoolean(
+				R.bool.zzz_ph_resolve_redirects);
+		mTraceToLog = context.getResources().getBoolean(
+				R.bool.zzz_ph_trace_to_log);
+		mFadeDuration = context.getResources().getInteger(
+				R.integer.zzz_ph_fade_duration);
+		mCrossfadeDuration = context.getResources().getInteger(
+				R.integer.zzz_ph_crossfade_duration);
+		mFadeCurve = context.getResources().getString(
+				R.string.zzz_ph_fade_curve);
+		mErrorRetries = context.getResources().getInteger(
+				R.integer.zzz_ph_error_retries);
+		mErrorRetryDelay = context.getResources().getInteger(
+				R.integer.zzz_ph_error_retry_delay);
+		mErrorRetryMaxDelay = context.getResources().getInteger(
+				R.integer.zzz_ph_error_retry_max_delay);
+		mPlaylistCacheSize = context.getResources().getInteger(
+				R.integer.zzz_ph_playlist_cache_size);
 		XmlResourceParser parser = context.getResources().getXml(
 				R.xml.zzz_ph_config_defaults);
 		load(parser, context);
@@ -100,6 +150,170 @@ public class Config implements Parcelable {
 		}
 	}
 
+	/**
+	 * @return The number of players the playback service keeps in its
+	 *         {@link org.prx.playerhater.mediaplayer.MediaPlayerPool}.
+	 *         Override {@code R.integer.zzz_ph_media_player_pool_size} to
+	 *         change it.
+	 */
+	public int getMediaPlayerPoolSize() {
+		return mMediaPlayerPoolSize;
+	}
+
+	/**
+	 * @return The number of upcoming songs in the queue which should be kept
+	 *         prepared ahead of time. Override
+	 *         {@code R.integer.zzz_ph_lookahead_songs} to change it.
+	 */
+	public int getLookaheadSongs() {
+		return mLookaheadSongs;
+	}
+
+	/**
+	 * @return Whether the song before the now playing song should also be
+	 *         kept prepared. Override
+	 *         {@code R.bool.zzz_ph_lookahead_previous} to change it.
+	 */
+	public boolean getLookaheadPrevious() {
+		return mLookaheadPrevious;
+	}
+
+	/**
+	 * @return How long, in milliseconds, a pooled player may sit idle
+	 *         before it is released. Zero or less keeps idle players
+	 *         forever. Override {@code R.integer.zzz_ph_idle_player_timeout}
+	 *         to change it.
+	 */
+	public int getIdlePlayerTimeout() {
+		return mIdlePlayerTimeout;
+	}
+
+	/**
+	 * @return Whether the next song in the queue should be prepared and
+	 *         started without a gap when the now playing song ends.
+	 *         Override {@code R.bool.zzz_ph_gapless} to change it.
+	 */
+	public boolean getGapless() {
+		return mGapless;
+	}
+
+	/**
+	 * @return How many players may be created beyond the pool size when
+	 *         every pooled player is in use, for example during a burst of
+	 *         skips. Override {@code R.integer.zzz_ph_max_overflow_players}
+	 *         to change it.
+	 */
+	public int getMaxOverflowPlayers() {
+		return mMaxOverflowPlayers;
+	}
+
+	/**
+	 * @return How long, in milliseconds, a request for a player may wait for
+	 *         one to be recycled once no more overflow players may be
+	 *         created. Override {@code R.integer.zzz_ph_exhaustion_wait} to
+	 *         change it.
+	 */
+	public int getExhaustionWait() {
+		return mExhaustionWait;
+	}
+
+	/**
+	 * @return The names of query parameters which are ignored when matching
+	 *         a song to a prepared player. A name ending in {@code *}
+	 *         matches every parameter starting with the rest of it. Override
+	 *         {@code R.string.zzz_ph_ignored_query_parameters} (a comma
+	 *         separated list) to change it.
+	 */
+	public String[] getIgnoredQueryParameters() {
+		return mIgnoredQueryParameters.split(",");
+	}
+
+	/**
+	 * @return Whether http redirects are followed, in the background, so
+	 *         that songs which redirect to the same place share a prepared
+	 *         player. Override {@code R.bool.zzz_ph_resolve_redirects} to
+	 *         change it.
+	 */
+	public boolean getResolveRedirects() {
+		return mResolveRedirects;
+	}
+
+	/**
+	 * @return Whether the service logs how long each step of playing a song
+	 *         takes, using {@link Tracer#LOG_SINK}, if no other
+	 *         {@link Tracer.Sink} has been set. Override
+	 *         {@code R.bool.zzz_ph_trace_to_log} to change it.
+	 */
+	public boolean getTraceToLog() {
+		return mTraceToLog;
+	}
+
+	/**
+	 * @return How long, in milliseconds, each entry of a playlist after the
+	 *         first fades in for, or 0 not to fade. Override
+	 *         {@code R.integer.zzz_ph_fade_duration} to change it.
+	 */
+	public int getFadeDuration() {
+		return mFadeDuration;
+	}
+
+	/**
+	 * @return How long, in milliseconds, one song fades out while the next
+	 *         song in the queue fades in, or 0 to go from one to the next
+	 *         without a gap. Only used when {@link #getGapless()} is on.
+	 *         Override {@code R.integer.zzz_ph_crossfade_duration} to change
+	 *         it.
+	 */
+	public int getCrossfadeDuration() {
+		return mCrossfadeDuration;
+	}
+
+	/**
+	 * @return The shape of fades and crossfades, either {@code linear} or
+	 *         {@code equal_power}. Override
+	 *         {@code R.string.zzz_ph_fade_curve} to change it.
+	 */
+	public String getFadeCurve() {
+		return mFadeCurve;
+	}
+
+	/**
+	 * @return How many times in a row a song which fails with a transient
+	 *         error is loaded again, from where it was, before it is
+	 *         skipped. Override {@code R.integer.zzz_ph_error_retries} to
+	 *         change it; 0 skips on the first error.
+	 */
+	public int getErrorRetries() {
+		return mErrorRetries;
+	}
+
+	/**
+	 * @return The wait, in milliseconds, before the first retry after an
+	 *         error; each retry after that waits twice as long. Override
+	 *         {@code R.integer.zzz_ph_error_retry_delay} to change it.
+	 */
+	public int getErrorRetryDelay() {
+		return mErrorRetryDelay;
+	}
+
+	/**
+	 * @return The longest wait, in milliseconds, before a retry after an
+	 *         error. Override {@code R.integer.zzz_ph_error_retry_max_delay}
+	 *         to change it.
+	 */
+	public int getErrorRetryMaxDelay() {
+		return mErrorRetryMaxDelay;
+	}
+
+	/**
+	 * @return How many playlist lookups are remembered, in memory and on
+	 *         disk, between plays; 0 remembers none. Override
+	 *         {@code R.integer.zzz_ph_playlist_cache_size} to change it.
+	 */
+	public int getPlaylistCacheSize() {
+		return mPlaylistCacheSize;
+	}
+
 	private Set<Class<? extends PlayerHaterPlugin>> getPlugins() {
 		return getPlugins(mPlugins);
 	}
@@ -127,6 +341,23 @@ public class Config implements Parcelable {
 	@Override
 	public void writeToParcel(Parcel dest, int flags) {
 		dest.writeStringArray(getPluginsArray());
+		dest.writeInt(mMediaPlayerPoolSize);
+		dest.writeInt(mLookaheadSongs);
+		dest.writeInt(mLookaheadPrevious ? 1 : 0);
+		dest.writeInt(mIdlePlayerTimeout);
+		dest.writeInt(mGapless ? 1 : 0);
+		dest.writeInt(mMaxOverflowPlayers);
+		dest.writeInt(mExhaustionWait);
+		dest.writeString(mIgnoredQueryParameters);
+		dest.writeInt(mResolveRedirects ? 1 : 0);
+		dest.writeInt(mTraceToLog ? 1 : 0);
+		dest.writeInt(mFadeDuration);
+		dest.writeInt(mCrossfadeDuration);
+		dest.writeString(mFadeCurve);
+		dest.writeInt(mErrorRetries);
+		dest.writeInt(mErrorRetryDelay);
+		dest.writeInt(mErrorRetryMaxDelay);
+		dest.writeInt(mPlaylistCacheSize);
 	}
 
 	public static final Parcelable.Creator<Config> CREATOR = new Parcelable.Creator<Config>() {
@@ -147,6 +378,23 @@ public class Config implements Parcelable {
 
 	private Config(Parcel in) {
 		setPluginsArray(in.createStringArray());
+		mMediaPlayerPoolSize = in.readInt();
+		mLookaheadSongs = in.readInt();
+		mLookaheadPrevious = in.readInt() != 0;
+		mIdlePlayerTimeout = in.readInt();
+		mGapless = in.readInt() != 0;
+		mMaxOverflowPlayers = in.readInt();
+		mExhaustionWait = in.readInt();
+		mIgnoredQueryParameters = in.readString();
+		mResolveRedirects = in.readInt() != 0;
+		mTraceToLog = in.readInt() != 0;
+		mFadeDuration = in.readInt();
+		mCrossfadeDuration = in.readInt();
+		mFadeCurve = in.readString();
+		mErrorRetries = in.readInt();
+		mErrorRetryDelay = in.readInt();
+		mErrorRetryMaxDelay = in.readInt();
+		mPlaylistCacheSize = in.readInt();
 	}
 
 	private String[] getPluginsArray() {
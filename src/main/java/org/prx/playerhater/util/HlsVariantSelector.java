@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.net.Uri;
+
+/**
+ * Picks which variant of an HLS master playlist to play, from the
+ * throughput measured while fetching playlists and segments.
+ * <p>
+ * The estimate is a moving average of samples given to
+ * {@link #addSample(long, long)}. Samples are timed from the first byte of
+ * the response, and ones smaller than {@link #MIN_SAMPLE_BYTES} are
+ * dropped, since how long they take is mostly latency. The highest variant
+ * whose bandwidth fits the estimate is picked, or the lowest if none does
+ * or nothing has been measured yet.
+ * <p>
+ * A rebuffer on a variant shows that the estimate was too high for it, so
+ * {@link #onRebuffer(Uri)} brings it down below that variant and says which
+ * variant to switch to. While a variant plays steadily, fresh samples may
+ * raise the estimate again, and {@link #onSteadyPlayback(Uri)} says when a
+ * higher variant now fits.
+ */
+public final class HlsVariantSelector {
+
+	/**
+	 * How much of the estimate each new sample makes up.
+	 */
+	public static final float SMOOTHING = 0.3f;
+
+	/**
+	 * The fewest bytes a sample must have to count.
+	 */
+	public static final int MIN_SAMPLE_BYTES = 16 * 1024;
+
+	private static final int MAX_MASTERS = 16;
+
+	/**
+	 * One {@code EXT-X-STREAM-INF} entry of a master playlist.
+	 */
+	public static final class Variant {
+		private final Uri mUri;
+		private final long mBandwidth;
+
+		public Variant(Uri uri, long bandwidth) {
+			mUri = uri;
+			mBandwidth = bandwidth;
+		}
+
+		public Uri getUri() {
+			return mUri;
+		}
+
+		/**
+		 * @return The peak bits per second the variant needs.
+		 */
+		public long getBandwidth() {
+			return mBandwidth;
+		}
+	}
+
+	private static final Comparator<Variant> BY_BANDWIDTH = new Comparator<Variant>() {
+
+		@Override
+		public int compare(Variant lhs, Variant rhs) {
+			if (lhs.mBandwidth == rhs.mBandwidth) {
+				return 0;
+			}
+			return lhs.mBandwidth < rhs.mBandwidth ? -1 : 1;
+		}
+	};
+
+	private static HlsVariantSelector sDefault;
+
+	public static synchronized HlsVariantSelector getDefault() {
+		if (sDefault == null) {
+			sDefault = new HlsVariantSelector();
+		}
+		return sDefault;
+	}
+
+	/*
+	 * The variants of recently played master playlists, lowest bandwidth
+	 * first, so that the variant now playing can be switched.
+	 */
+	private final LinkedHashMap<Uri, Variant[]> mMasters = new LinkedHashMap<Uri, Variant[]>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Uri, Variant[]> eldest) {
+			return size() > MAX_MASTERS;
+		}
+	};
+
+	private long mEstimate = -1;
+
+	/**
+	 * Adds a throughput sample.
+	 *
+	 * @param bytes
+	 *            How many bytes were read.
+	 * @param millis
+	 *            How long, in milliseconds, it took from the first byte
+	 *            arriving to reading the last of them.
+	 */
+	public synchronized void addSample(long bytes, long millis) {
+		if (bytes < MIN_SAMPLE_BYTES) {
+			return;
+		}
+		long throughput = bytes * 8 * 1000 / Math.max(1, millis);
+		if (mEstimate == -1) {
+			mEstimate = throughput;
+		} else {
+			mEstimate += (long) (SMOOTHING * (throughput - mEstimate));
+		}
+	}
+
+	/**
+	 * @return The estimated throughput in bits per second, or -1 if nothing
+	 *         has been measured.
+	 */
+	public synchronized long getEstimate() {
+		return mEstimate;
+	}
+
+	/**
+	 * Remembers the variants of {@code master} and picks one to play.
+	 */
+	public synchronized Uri select(Uri master, Variant[] variants) {
+		Variant[] sorted = variants.clone();
+		Arrays.sort(sorted, BY_BANDWIDTH);
+		mMasters.put(master, sorted);
+		return pick(sorted).mUri;
+	}
+
+	/**
+	 * Lowers the estimate below the bandwidth of {@code variant}, which
+	 * couldn't keep up.
+	 *
+	 * @return The variant to switch to, or {@code null} if {@code variant}
+	 *         is still the best one (or isn't one).
+	 */
+	public synchronized Uri onRebuffer(Uri variant) {
+		Variant[] variants = getVariants(variant);
+		if (variants == null) {
+			return null;
+		}
+		for (Variant candidate : variants) {
+			if (candidate.mUri.equals(variant)) {
+				long below = candidate.mBandwidth - 1;
+				mEstimate = mEstimate == -1 ? below : Math.min(mEstimate,
+						below);
+				break;
+			}
+		}
+		Uri better = pick(variants).mUri;
+		return better.equals(variant) ? null : better;
+	}
+
+	/**
+	 * Checks, while {@code variant} plays without rebuffering, whether the
+	 * estimate now fits a higher variant.
+	 *
+	 * @return The higher variant to switch to, or {@code null}.
+	 */
+	public synchronized Uri onSteadyPlayback(Uri variant) {
+		Variant[] variants = getVariants(variant);
+		if (variants == null || mEstimate == -1) {
+			return null;
+		}
+		Variant picked = pick(variants);
+		for (Variant candidate : variants) {
+			if (candidate.mUri.equals(variant)) {
+				return picked.mBandwidth > candidate.mBandwidth ? picked.mUri
+						: null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return Whether {@code uri} is a variant of a recently played master
+	 *         playlist.
+	 */
+	public synchronized boolean isVariant(Uri uri) {
+		return getVariants(uri) != null;
+	}
+
+	private Variant[] getVariants(Uri uri) {
+		for (Variant[] variants : mMasters.values()) {
+			for (Variant variant : variants) {
+				if (variant.mUri.equals(uri)) {
+					return variants;
+				}
+			}
+		}
+		return null;
+	}
+
+	private Variant pick(Variant[] sorted) {
+		Variant picked = sorted[0];
+		if (mEstimate != -1) {
+			for (Variant variant : sorted) {
+				if (variant.mBandwidth <= mEstimate) {
+					picked = variant;
+				}
+			}
+		}
+		return picked;
+	}
+}
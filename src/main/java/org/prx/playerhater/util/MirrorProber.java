@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.util;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+/**
+ * Checks the entries of a playlist side by side, to tell whether they are
+ * mirrors of one live stream (as the {@code FileN} entries of a Shoutcast
+ * PLS usually are) and, if so, which answers fastest.
+ * <p>
+ * Each entry gets one GET, which is hung up on as soon as the response
+ * headers are in. Probes run on a shared pool of {@link #MAX_PROBES}
+ * threads and are given up on after {@link #PROBE_TIMEOUT} altogether.
+ */
+public final class MirrorProber {
+
+	/**
+	 * How many entries are probed at once.
+	 */
+	public static final int MAX_PROBES = 4;
+
+	/**
+	 * Playlists longer than this are taken to be tracks, not mirrors, and
+	 * aren't probed.
+	 */
+	public static final int MAX_MIRRORS = 8;
+
+	/**
+	 * How long, in milliseconds, to wait for all of the probes.
+	 */
+	public static final int PROBE_TIMEOUT = 5000;
+
+	private static ExecutorService sProbers;
+
+	/**
+	 * What probing an entry found.
+	 */
+	public static final class Probe {
+		private final Uri mUri;
+		private final boolean mReachable;
+		private final boolean mLive;
+		private final long mResponseTime;
+
+		private Probe(Uri uri, boolean reachable, boolean live,
+				long responseTime) {
+			mUri = uri;
+			mReachable = reachable;
+			mLive = live;
+			mResponseTime = responseTime;
+		}
+
+		public Uri getUri() {
+			return mUri;
+		}
+
+		/**
+		 * @return Whether the entry answered with a 2xx in time.
+		 */
+		public boolean isReachable() {
+			return mReachable;
+		}
+
+		/**
+		 * @return Whether the entry is a Shoutcast or Icecast stream, which
+		 *         is to say that it answered with {@code icy-} headers.
+		 */
+		public boolean isLive() {
+			return mLive;
+		}
+
+		/**
+		 * @return How long, in milliseconds, the response headers took, or
+		 *         -1 if it wasn't reachable.
+		 */
+		public long getResponseTime() {
+			return mResponseTime;
+		}
+
+		@Override
+		public String toString() {
+			return "Probe [uri=" + mUri + ", reachable=" + mReachable
+					+ ", live=" + mLive + ", responseTime=" + mResponseTime
+					+ "]";
+		}
+	}
+
+	private static final Comparator<Probe> RANKING = new Comparator<Probe>() {
+
+		@Override
+		public int compare(Probe lhs, Probe rhs) {
+			if (lhs.mReachable != rhs.mReachable) {
+				return lhs.mReachable ? -1 : 1;
+			} else if (!lhs.mReachable
+					|| lhs.mResponseTime == rhs.mResponseTime) {
+				return 0;
+			}
+			return lhs.mResponseTime < rhs.mResponseTime ? -1 : 1;
+		}
+	};
+
+	private MirrorProber() {
+	}
+
+	/**
+	 * Probes {@code candidates} at the same time.
+	 *
+	 * @return The probes, reachable entries first from fastest to slowest,
+	 *         then the rest in the order they were given; or {@code null} if
+	 *         there are more than {@link #MAX_MIRRORS} candidates.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	public static Probe[] probe(Uri[] candidates) throws InterruptedException {
+		if (candidates.length > MAX_MIRRORS) {
+			return null;
+		}
+		List<Callable<Probe>> tasks = new ArrayList<Callable<Probe>>();
+		for (final Uri candidate : candidates) {
+			tasks.add(new Callable<Probe>() {
+
+				@Override
+				public Probe call() throws Exception {
+					return probe(candidate);
+				}
+			});
+		}
+		List<Future<Probe>> futures = getProbers().invokeAll(tasks,
+				PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+		Probe[] probes = new Probe[candidates.length];
+		for (int i = 0; i < probes.length; i++) {
+			try {
+				probes[i] = futures.get(i).get();
+			} catch (Exception e) {
+				probes[i] = new Probe(candidates[i], false, false, -1);
+			}
+		}
+		Arrays.sort(probes, RANKING);
+		return probes;
+	}
+
+	/**
+	 * @return Whether {@code probes} look like mirrors of one live stream:
+	 *         at least one is reachable, and every reachable one is live.
+	 */
+	public static boolean areMirrors(Probe[] probes) {
+		boolean reachable = false;
+		for (Probe probe : probes) {
+			if (probe.mReachable) {
+				if (!probe.mLive) {
+					return false;
+				}
+				reachable = true;
+			}
+		}
+		return reachable;
+	}
+
+	public static Uri[] getUris(Probe[] probes) {
+		Uri[] uris = new Uri[probes.length];
+		for (int i = 0; i < probes.length; i++) {
+			uris[i] = probes[i].mUri;
+		}
+		return uris;
+	}
+
+	private static Probe probe(Uri uri) {
+		HttpURLConnection connection = null;
+		long start = SystemClock.elapsedRealtime();
+		try {
+			connection = (HttpURLConnection) new URL(uri.toString())
+					.openConnection();
+			connection.setConnectTimeout(PlaylistParser.CONNECT_TIMEOUT);
+			connection.setReadTimeout(PlaylistParser.READ_TIMEOUT);
+			// Asks for the icy- headers, which some servers only send then.
+			connection.setRequestProperty("Icy-MetaData", "1");
+			if (connection.getResponseCode() / 100 != 2) {
+				return new Probe(uri, false, false, -1);
+			}
+			long responseTime = SystemClock.elapsedRealtime() - start;
+			return new Probe(uri, true, isLive(connection), responseTime);
+		} catch (Exception e) {
+			Log.d("Couldn't probe " + uri + ": " + e);
+			return new Probe(uri, false, false, -1);
+		} finally {
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+	}
+
+	/*
+	 * Shoutcast and Icecast servers send icy- headers. A missing length
+	 * isn't enough to go on, since files are often sent chunked.
+	 */
+	private static boolean isLive(HttpURLConnection connection) {
+		for (String field : connection.getHeaderFields().keySet()) {
+			if (field != null && field.regionMatches(true, 0, "icy-", 0, 4)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static synchronized ExecutorService getProbers() {
+		if (sProbers == null) {
+			sProbers = Executors.newFixedThreadPool(MAX_PROBES);
+		}
+		return sProbers;
+	}
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.util;
+
+import java.util.Arrays;
+
+import android.net.Uri;
+
+/**
+ * The entries {@link PlaylistParser} found in a playlist, with the title
+ * and duration it gave for each ({@code #EXTINF}, or PLS {@code TitleN} and
+ * {@code LengthN}), so that the length of the whole playlist and where each
+ * entry starts are known before any entry is prepared.
+ * <p>
+ * Playlists are immutable.
+ */
+public class Playlist {
+
+	/**
+	 * The duration of an entry the playlist doesn't give one for, or which
+	 * is a live stream.
+	 */
+	public static final int UNKNOWN_DURATION = -1;
+
+	private final Uri[] mUris;
+	private final String[] mTitles;
+	private final int[] mDurations;
+	private final boolean mPls;
+
+	/**
+	 * A playlist of just {@code uri}, without a title or duration.
+	 */
+	public Playlist(Uri uri) {
+		this(new Uri[] { uri }, null, null);
+	}
+
+	/**
+	 * @param titles
+	 *            The title of each entry, or {@code null} in place of
+	 *            unknown ones, or in place of the array if none are known.
+	 * @param durations
+	 *            The duration of each entry in milliseconds, or
+	 *            {@link #UNKNOWN_DURATION} in place of unknown ones, or
+	 *            {@code null} in place of the array if none are known.
+	 */
+	public Playlist(Uri[] uris, String[] titles, int[] durations) {
+		this(uris, titles, durations, false);
+	}
+
+	/**
+	 * @param pls
+	 *            Whether the entries came from a PLS file.
+	 * @see #Playlist(Uri[], String[], int[])
+	 */
+	public Playlist(Uri[] uris, String[] titles, int[] durations, boolean pls) {
+		mPls = pls;
+		mUris = uris.clone();
+		mTitles = titles != null ? titles.clone() : new String[uris.length];
+		if (durations != null) {
+			mDurations = durations.clone();
+		} else {
+			mDurations = new int[uris.length];
+			Arrays.fill(mDurations, UNKNOWN_DURATION);
+		}
+	}
+
+	public int size() {
+		return mUris.length;
+	}
+
+	public Uri getUri(int index) {
+		return mUris[index];
+	}
+
+	public Uri[] getUris() {
+		return mUris.clone();
+	}
+
+	/**
+	 * @return The title of the entry, or {@code null} if the playlist
+	 *         doesn't give one.
+	 */
+	public String getTitle(int index) {
+		return mTitles[index];
+	}
+
+	/**
+	 * @return The duration of the entry in milliseconds, or
+	 *         {@link #UNKNOWN_DURATION}.
+	 */
+	public int getDuration(int index) {
+		return mDurations[index];
+	}
+
+	/**
+	 * @return Whether the entries came from a PLS file, whose entries (as
+	 *         Shoutcast serves them) may be mirrors of one stream.
+	 */
+	public boolean isPls() {
+		return mPls;
+	}
+
+	/**
+	 * @return How far into the playlist, in milliseconds, the entry starts,
+	 *         or {@link #UNKNOWN_DURATION} if an entry before it has no
+	 *         duration.
+	 */
+	public int getStart(int index) {
+		int start = 0;
+		for (int i = 0; i < index; i++) {
+			if (mDurations[i] == UNKNOWN_DURATION) {
+				return UNKNOWN_DURATION;
+			}
+			start += mDurations[i];
+		}
+		return start;
+	}
+
+	/**
+	 * @return The duration of the whole playlist in milliseconds, or
+	 *         {@link #UNKNOWN_DURATION} if any entry has no duration.
+	 */
+	public int getTotalDuration() {
+		return getStart(mUris.length);
+	}
+
+	/**
+	 * @return The same entries, with their titles and durations, in the
+	 *         order of {@code uris}, which must all be entries of this
+	 *         playlist.
+	 */
+	public Playlist reorder(Uri[] uris) {
+		String[] titles = new String[uris.length];
+		int[] durations = new int[uris.length];
+		for (int i = 0; i < uris.length; i++) {
+			int index = Arrays.asList(mUris).indexOf(uris[i]);
+			titles[i] = mTitles[index];
+			durations[i] = mDurations[index];
+		}
+		return new Playlist(uris, titles, durations, mPls);
+	}
+
+	@Override
+	public String toString() {
+		return "Playlist " + Arrays.toString(mUris);
+	}
+}
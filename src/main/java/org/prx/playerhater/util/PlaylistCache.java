@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.net.Uri;
+
+/**
+ * Remembers what {@link PlaylistParser} found at each http {@link Uri} (the
+ * entries of a playlist, or that it was plain audio) for as long as the
+ * server's {@code Cache-Control} or {@code Expires} headers allow, or
+ * {@link #DEFAULT_TTL} if it sent neither. Responses marked
+ * {@code no-store} aren't kept.
+ * <p>
+ * Once an entry goes stale it is revalidated with its {@code ETag} or
+ * {@code Last-Modified} date, if it had one, so an unchanged playlist costs
+ * a 304 rather than a download.
+ * <p>
+ * The least recently used entries are dropped past {@link #getMaxEntries()}.
+ * If a file is given with {@link #setStore(File)}, entries are saved to it
+ * so that they outlive the process.
+ */
+public class PlaylistCache {
+
+	/**
+	 * How long, in milliseconds, a response with no caching headers is kept.
+	 */
+	public static final long DEFAULT_TTL = 10 * 60 * 1000;
+
+	/**
+	 * The longest, in milliseconds, any response is kept without
+	 * revalidating, whatever the server says.
+	 */
+	public static final long MAX_TTL = 24 * 60 * 60 * 1000;
+
+	public static final int DEFAULT_MAX_ENTRIES = 64;
+
+	private static final int STORE_VERSION = 3;
+
+	static final class Entry {
+		final Playlist playlist;
+		final long freshUntil;
+		final String etag;
+		final String lastModified;
+
+		Entry(Playlist playlist, long freshUntil, String etag,
+				String lastModified) {
+			this.playlist = playlist;
+			this.freshUntil = freshUntil;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+
+		boolean isFresh() {
+			return System.currentTimeMillis() < freshUntil;
+		}
+
+		/**
+		 * Sends this entry's validators with a request, so that the server
+		 * can answer 304 if it hasn't changed.
+		 */
+		void addValidators(HttpURLConnection connection) {
+			if (etag != null) {
+				connection.setRequestProperty("If-None-Match", etag);
+			}
+			if (lastModified != null) {
+				connection.setRequestProperty("If-Modified-Since",
+						lastModified);
+			}
+		}
+	}
+
+	private static PlaylistCache sInstance;
+
+	public static synchronized PlaylistCache getInstance() {
+		if (sInstance == null) {
+			sInstance = new PlaylistCache();
+		}
+		return sInstance;
+	}
+
+	private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+	private final LinkedHashMap<Uri, Entry> mEntries = new LinkedHashMap<Uri, Entry>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Uri, Entry> eldest) {
+			return size() > mMaxEntries;
+		}
+	};
+	private File mStore;
+	private boolean mLoaded = true;
+
+	/**
+	 * Sets the file entries are saved to and loaded from. They are loaded
+	 * the first time the cache is used afterwards, which should be off the
+	 * main thread.
+	 */
+	public synchronized void setStore(File store) {
+		mStore = store;
+		mLoaded = store == null;
+	}
+
+	/**
+	 * Sets how many entries are kept; 0 turns the cache off.
+	 */
+	public synchronized void setMaxEntries(int maxEntries) {
+		mMaxEntries = Math.max(0, maxEntries);
+		trim();
+	}
+
+	public synchronized int getMaxEntries() {
+		return mMaxEntries;
+	}
+
+	public synchronized void clear() {
+		mEntries.clear();
+		save();
+	}
+
+	synchronized Entry get(Uri uri) {
+		load();
+		return mEntries.get(uri);
+	}
+
+	/**
+	 * Keeps {@code playlist} as what is at {@code uri}, for as long as the
+	 * response {@code connection} got allows.
+	 */
+	synchronized void put(Uri uri, Playlist playlist,
+			HttpURLConnection connection) {
+		load();
+		long ttl = getTtl(connection);
+		String etag = connection.getHeaderField("ETag");
+		String lastModified = connection.getHeaderField("Last-Modified");
+		if (ttl < 0 || mMaxEntries == 0
+				|| (ttl == 0 && etag == null && lastModified == null)) {
+			if (mEntries.remove(uri) != null) {
+				save();
+			}
+			return;
+		}
+		mEntries.put(uri, new Entry(playlist, System.currentTimeMillis()
+				+ ttl, etag, lastModified));
+		save();
+	}
+
+	/**
+	 * Makes {@code entry} fresh again after the server said (with a 304) that
+	 * it hasn't changed.
+	 */
+	synchronized void revalidated(Uri uri, Entry entry,
+			HttpURLConnection connection) {
+		long ttl = Math.max(0, getTtl(connection));
+		String etag = connection.getHeaderField("ETag");
+		mEntries.put(uri, new Entry(entry.playlist, System.currentTimeMillis()
+				+ ttl, etag != null ? etag : entry.etag, entry.lastModified));
+		save();
+	}
+
+	/*
+	 * -1 if the response mustn't be kept, 0 if it must be revalidated every
+	 * time.
+	 */
+	private static long getTtl(HttpURLConnection connection) {
+		String cacheControl = connection.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			long maxAge = -1;
+			for (String directive : cacheControl.split(",")) {
+				directive = directive.trim().toLowerCase();
+				if (directive.equals("no-store")) {
+					return -1;
+				} else if (directive.equals("no-cache")) {
+					return 0;
+				} else if (directive.startsWith("max-age=")) {
+					try {
+						maxAge = Long.parseLong(directive.substring(8).trim()) * 1000;
+					} catch (NumberFormatException e) {
+						maxAge = 0;
+					}
+				}
+			}
+			if (maxAge >= 0) {
+				return Math.min(maxAge, MAX_TTL);
+			}
+		}
+		long expires = connection.getExpiration();
+		if (expires > 0) {
+			long date = connection.getDate();
+			if (date <= 0) {
+				date = System.currentTimeMillis();
+			}
+			return Math.max(0, Math.min(expires - date, MAX_TTL));
+		}
+		return DEFAULT_TTL;
+	}
+
+	private void trim() {
+		while (mEntries.size() > mMaxEntries) {
+			Uri eldest = mEntries.keySet().iterator().next();
+			mEntries.remove(eldest);
+		}
+	}
+
+	private void load() {
+		if (mLoaded) {
+			return;
+		}
+		mLoaded = true;
+		if (!mStore.exists()) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(mStore)));
+			if (in.readInt() != STORE_VERSION) {
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Uri uri = Uri.parse(in.readUTF());
+				long freshUntil = in.readLong();
+				String etag = readString(in);
+				String lastModified = readString(in);
+				boolean pls = in.readBoolean();
+				int length = in.readInt();
+				Uri[] uris = new Uri[length];
+				String[] titles = new String[length];
+				int[] durations = new int[length];
+				for (int j = 0; j < length; j++) {
+					uris[j] = Uri.parse(in.readUTF());
+					titles[j] = readString(in);
+					durations[j] = in.readInt();
+				}
+				mEntries.put(uri, new Entry(new Playlist(uris, titles,
+						durations, pls), freshUntil, etag, lastModified));
+			}
+		} catch (IOException e) {
+			Log.d("Couldn't load the playlist cache: " + e);
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/*
+	 * Written to a temporary file and renamed over the old one, so a crash
+	 * part way through leaves the last complete copy.
+	 */
+	private void save() {
+		if (mStore == null) {
+			return;
+		}
+		File temp = new File(mStore.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)));
+			out.writeInt(STORE_VERSION);
+			out.writeInt(mEntries.size());
+			for (Map.Entry<Uri, Entry> mapEntry : mEntries.entrySet()) {
+				Entry entry = mapEntry.getValue();
+				out.writeUTF(mapEntry.getKey().toString());
+				out.writeLong(entry.freshUntil);
+				writeString(out, entry.etag);
+				writeString(out, entry.lastModified);
+				Playlist playlist = entry.playlist;
+				out.writeBoolean(playlist.isPls());
+				out.writeInt(playlist.size());
+				for (int i = 0; i < playlist.size(); i++) {
+					out.writeUTF(playlist.getUri(i).toString());
+					writeString(out, playlist.getTitle(i));
+					out.writeInt(playlist.getDuration(i));
+				}
+			}
+			out.close();
+			out = null;
+			if (!temp.renameTo(mStore)) {
+				throw new IOException("Couldn't rename " + temp);
+			}
+		} catch (IOException e) {
+			Log.d("Couldn't save the playlist cache: " + e);
+			temp.delete();
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeString(DataOutputStream out, String string)
+			throws IOException {
+		out.writeBoolean(string != null);
+		if (string != null) {
+			out.writeUTF(string);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// Nothing left to do with it.
+			}
+		}
+	}
+}
@@ -16,113 +16,516 @@
 
 package org.prx.playerhater.util;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.ArrayList;
-
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpHead;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
 
+/**
+ * Works out whether an http song is a PLS, M3U or HLS playlist and, if it
+ * is, what it lists, with any titles and durations it gives.
+ * <p>
+ * Each call makes a single GET. The kind of response is decided from its
+ * content type and its first few bytes, so a playlist is parsed from the
+ * same response and plain audio is hung up on after those bytes. Playlist
+ * bodies are read to the end so that the connection goes back into
+ * {@link HttpURLConnection}'s keep-alive pool for the next request to the
+ * same server.
+ * <p>
+ * What is found is kept in the {@link PlaylistCache}, so that playing the
+ * same song again needs no request, or only a conditional one.
+ * <p>
+ * HLS playlists are left to the platform player, which plays them itself.
+ * A master playlist comes back as the one variant picked for it by the
+ * {@link HlsVariantSelector}, which is fed the throughput of every
+ * playlist read here and of {@link #sampleThroughput(Uri)}.
+ */
 public final class PlaylistParser {
 
+	/**
+	 * How long, in milliseconds, to wait for a connection to a server.
+	 */
+	public static final int CONNECT_TIMEOUT = 5000;
+
+	/**
+	 * How long, in milliseconds, to wait for a server to send something.
+	 */
+	public static final int READ_TIMEOUT = 10000;
+
+	private static final int SNIFF_LENGTH = 512;
+
+	/*
+	 * How much of a segment sampleThroughput reads.
+	 */
+	private static final int SEGMENT_SAMPLE_LENGTH = 64 * 1024;
+
+	private static final int DIRECT = 0;
+	private static final int PLS = 1;
+	private static final int M3U = 2;
+	private static final int HLS = 3;
+
+	private static final String EXTINF = "#EXTINF:";
+	private static final String STREAM_INF = "#EXT-X-STREAM-INF:";
+	private static final Pattern BANDWIDTH = Pattern
+			.compile("(?:^|,)\\s*BANDWIDTH=(\\d+)");
+
 	private static String[] PLS_MIME_TYPES = new String[] { "audio/scpls",
 			"audio/x-scpls" };
-	private static String[] M3U_MIME_TYPES = new String[] { "audio/x-mpegurl" };
+	private static String[] M3U_MIME_TYPES = new String[] { "audio/x-mpegurl",
+			"audio/mpegurl" };
+	private static String[] HLS_MIME_TYPES = new String[] {
+			"application/vnd.apple.mpegurl", "application/x-mpegurl" };
 
+	static {
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
+			// Pooled connections are broken before Froyo.
+			System.setProperty("http.keepAlive", "false");
+		}
+	}
+
+	private PlaylistParser() {
+	}
+
+	/**
+	 * @return The entries of {@link #parse(Uri)}, without their titles and
+	 *         durations.
+	 */
 	public static Uri[] parsePlaylist(Uri uri) {
+		return parse(uri).getUris();
+	}
+
+	/**
+	 * @return The entries of the playlist at {@code uri}, or just
+	 *         {@code uri} if it isn't a playlist or can't be read.
+	 */
+	public static Playlist parse(Uri uri) {
+		PlaylistCache cache = PlaylistCache.getInstance();
+		PlaylistCache.Entry cached = cache.get(uri);
+		if (cached != null && cached.isFresh()) {
+			return cached.playlist;
+		}
+		HttpURLConnection connection = null;
+		InputStream body = null;
+		boolean drained = false;
 		try {
-			HttpClient httpclient = new DefaultHttpClient();
-			HttpResponse response = httpclient.execute(new HttpHead(uri
-					.toString()));
-			Header contentType = response.getEntity().getContentType();
-			if (contentType != null) {
-				String mimeType = contentType.getValue().split(";")[0].trim();
-
-				for (String plsMimeType : PLS_MIME_TYPES) {
-					if (plsMimeType.equalsIgnoreCase(mimeType)) {
-						return parsePls(uri);
-					}
+			URL url = new URL(uri.toString());
+			connection = (HttpURLConnection) url.openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+			if (cached != null) {
+				cached.addValidators(connection);
+			}
+			int status = connection.getResponseCode();
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+				drained = true;
+				cache.revalidated(uri, cached, connection);
+				return cached.playlist;
+			}
+			if (status / 100 != 2) {
+				return new Playlist(uri);
+			}
+			CountingInputStream counter = new CountingInputStream(
+					connection.getInputStream());
+			body = new BufferedInputStream(counter, SNIFF_LENGTH);
+			body.mark(SNIFF_LENGTH);
+			String prefix = readPrefix(body);
+			body.reset();
+			URL base = connection.getURL();
+			Playlist playlist = null;
+			boolean cacheable = true;
+			switch (sniff(connection.getContentType(), prefix)) {
+			case PLS:
+				playlist = parsePls(newReader(body), base);
+				drained = true;
+				break;
+			case M3U:
+				playlist = parseM3u(newReader(body), base);
+				drained = true;
+				break;
+			case HLS:
+				playlist = parseHls(uri, newReader(body), base);
+				drained = true;
+				// The variant picked changes with the throughput estimate.
+				cacheable = playlist == null;
+				break;
+			}
+			if (drained) {
+				counter.addSample();
+			}
+			if (playlist == null) {
+				playlist = new Playlist(uri);
+			}
+			if (cacheable) {
+				cache.put(uri, playlist, connection);
+			}
+			return playlist;
+		} catch (Exception e) {
+			Log.d("Couldn't read a playlist from " + uri + ": " + e);
+		} finally {
+			if (drained) {
+				closeQuietly(body);
+			} else if (connection != null) {
+				// Not worth reading the rest of an audio stream to keep the
+				// connection.
+				connection.disconnect();
+			}
+		}
+		return new Playlist(uri);
+	}
+
+	/**
+	 * Measures throughput for the {@link HlsVariantSelector} by reading the
+	 * start of the first segment of the HLS media playlist at {@code uri}.
+	 * This blocks, so it mustn't be called on the main thread.
+	 */
+	public static void sampleThroughput(Uri uri) {
+		HttpURLConnection connection = null;
+		try {
+			connection = open(uri);
+			if (connection.getResponseCode() / 100 != 2) {
+				return;
+			}
+			CountingInputStream counter = new CountingInputStream(
+					connection.getInputStream());
+			BufferedReader reader = newReader(counter);
+			Uri segment = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (segment == null && line.length() > 0
+						&& !line.startsWith("#")) {
+					segment = resolve(connection.getURL(), line);
 				}
+			}
+			counter.addSample();
+			reader.close();
+			if (segment == null) {
+				return;
+			}
+			connection = open(segment);
+			connection.setRequestProperty("Range", "bytes=0-"
+					+ (SEGMENT_SAMPLE_LENGTH - 1));
+			if (connection.getResponseCode() / 100 != 2) {
+				return;
+			}
+			counter = new CountingInputStream(connection.getInputStream());
+			byte[] buffer = new byte[4096];
+			while (counter.getCount() < SEGMENT_SAMPLE_LENGTH
+					&& counter.read(buffer) != -1) {
+				// Only the timing matters.
+			}
+			counter.addSample();
+		} catch (Exception e) {
+			Log.d("Couldn't sample throughput from " + uri + ": " + e);
+		} finally {
+			if (connection != null) {
+				// The server may have ignored the range.
+				connection.disconnect();
+			}
+		}
+	}
+
+	private static HttpURLConnection open(Uri uri) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(
+				uri.toString()).openConnection();
+		connection.setConnectTimeout(CONNECT_TIMEOUT);
+		connection.setReadTimeout(READ_TIMEOUT);
+		return connection;
+	}
+
+	private static int sniff(String contentType, String prefix) {
+		String mimeType = contentType != null ? contentType.split(";")[0]
+				.trim() : "";
+		String start = prefix.trim().toLowerCase();
+		// HLS is often served as plain M3U.
+		boolean hls = start.startsWith("#extm3u")
+				&& start.indexOf("#ext-x-") != -1;
+		for (String hlsMimeType : HLS_MIME_TYPES) {
+			if (hlsMimeType.equalsIgnoreCase(mimeType)) {
+				return HLS;
+			}
+		}
+		for (String plsMimeType : PLS_MIME_TYPES) {
+			if (plsMimeType.equalsIgnoreCase(mimeType)) {
+				return PLS;
+			}
+		}
+		for (String m3uMimeType : M3U_MIME_TYPES) {
+			if (m3uMimeType.equalsIgnoreCase(mimeType)) {
+				return hls ? HLS : M3U;
+			}
+		}
+		if (start.startsWith("[playlist]")) {
+			return PLS;
+		} else if (start.startsWith("#extm3u")) {
+			return hls ? HLS : M3U;
+		} else if ((mimeType.length() == 0 || mimeType.startsWith("text/"))
+				&& (start.startsWith("http://") || start.startsWith("https://"))) {
+			// A bare list of links, as M3U files served as text often are.
+			return M3U;
+		}
+		return DIRECT;
+	}
 
-				for (String m3uMimeType : M3U_MIME_TYPES) {
-					if (m3uMimeType.equalsIgnoreCase(mimeType)) {
-						return parseM3u(uri);
-					}
+	/*
+	 * Reads up to SNIFF_LENGTH bytes, as Latin-1 so that any bytes at all
+	 * make a string.
+	 */
+	private static String readPrefix(InputStream in) throws IOException {
+		byte[] buffer = new byte[SNIFF_LENGTH];
+		int length = 0;
+		while (length < buffer.length) {
+			int read = in.read(buffer, length, buffer.length - length);
+			if (read == -1) {
+				break;
+			}
+			length += read;
+		}
+		int start = 0;
+		if (length >= 3 && (buffer[0] & 0xFF) == 0xEF
+				&& (buffer[1] & 0xFF) == 0xBB && (buffer[2] & 0xFF) == 0xBF) {
+			start = 3; // UTF-8 byte order mark
+		}
+		return new String(buffer, start, length - start, "ISO-8859-1");
+	}
+
+	private static BufferedReader newReader(InputStream in)
+			throws IOException {
+		return new BufferedReader(new InputStreamReader(in, "UTF-8"));
+	}
+
+	/*
+	 * FileN, TitleN and LengthN (in seconds) lines, in any order, make up
+	 * entry N. Null if there are no entries.
+	 */
+	private static Playlist parsePls(BufferedReader reader, URL base)
+			throws IOException {
+		ArrayList<String> numbers = new ArrayList<String>();
+		HashMap<String, String> files = new HashMap<String, String>();
+		HashMap<String, String> titles = new HashMap<String, String>();
+		HashMap<String, String> lengths = new HashMap<String, String>();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			int equals = line.indexOf('=');
+			if (equals == -1) {
+				continue;
+			}
+			String key = line.substring(0, equals).trim();
+			String value = line.substring(equals + 1).trim();
+			if (key.regionMatches(true, 0, "File", 0, 4)
+					&& value.length() > 0) {
+				String number = key.substring(4);
+				if (!files.containsKey(number)) {
+					numbers.add(number);
 				}
+				files.put(number, value);
+			} else if (key.regionMatches(true, 0, "Title", 0, 5)) {
+				titles.put(key.substring(5), value);
+			} else if (key.regionMatches(true, 0, "Length", 0, 6)) {
+				lengths.put(key.substring(6), value);
 			}
-		} catch (Exception e) {}
-		return new Uri[] { uri };
+		}
+		int size = numbers.size();
+		if (size == 0) {
+			return null;
+		}
+		Uri[] uris = new Uri[size];
+		String[] entryTitles = new String[size];
+		int[] durations = new int[size];
+		for (int i = 0; i < size; i++) {
+			String number = numbers.get(i);
+			uris[i] = resolve(base, files.get(number));
+			entryTitles[i] = getTitle(titles.get(number));
+			durations[i] = getDuration(lengths.get(number));
+		}
+		return new Playlist(uris, entryTitles, durations, true);
 	}
 
-	private static Uri[] parsePls(Uri uri) {
+	/*
+	 * An #EXTINF:<seconds>,<title> line describes the entry after it. Null
+	 * if there are no entries.
+	 */
+	private static Playlist parseM3u(BufferedReader reader, URL base)
+			throws IOException {
+		ArrayList<Uri> uris = new ArrayList<Uri>();
+		ArrayList<String> titles = new ArrayList<String>();
+		ArrayList<Integer> durations = new ArrayList<Integer>();
+		String title = null;
+		int duration = Playlist.UNKNOWN_DURATION;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.regionMatches(true, 0, EXTINF, 0, EXTINF.length())) {
+				String info = line.substring(EXTINF.length());
+				int comma = info.indexOf(',');
+				String seconds = comma == -1 ? info : info.substring(0, comma);
+				// Attributes may follow the duration, before the comma.
+				duration = getDuration(seconds.trim().split("\\s")[0]);
+				title = comma == -1 ? null : getTitle(info.substring(comma + 1));
+			} else if (line.length() > 0 && !line.startsWith("#")) {
+				uris.add(resolve(base, line));
+				titles.add(title);
+				durations.add(duration);
+				title = null;
+				duration = Playlist.UNKNOWN_DURATION;
+			}
+		}
+		int size = uris.size();
+		if (size == 0) {
+			return null;
+		}
+		int[] entryDurations = new int[size];
+		for (int i = 0; i < size; i++) {
+			entryDurations[i] = durations.get(i);
+		}
+		return new Playlist(uris.toArray(new Uri[size]),
+				titles.toArray(new String[size]), entryDurations);
+	}
+
+	private static String getTitle(String title) {
+		if (title == null || title.trim().length() == 0) {
+			return null;
+		}
+		return title.trim();
+	}
+
+	/*
+	 * Seconds, perhaps fractional, to milliseconds. Live streams are given
+	 * as -1.
+	 */
+	private static int getDuration(String seconds) {
+		if (seconds == null) {
+			return Playlist.UNKNOWN_DURATION;
+		}
 		try {
-			HttpClient httpclient = new DefaultHttpClient();
-			HttpResponse response = httpclient.execute(new HttpGet(uri.toString()));
-			HttpEntity entity = response.getEntity();
-			InputStream inputStream = entity.getContent();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(
-					inputStream));
-			String header = reader.readLine();
-			if (header.trim().equalsIgnoreCase("[playlist]")) {
-				String line;
-				ArrayList<Uri> uriList = new ArrayList<Uri>();
-				do {
-					line = reader.readLine();
-					if (line != null) {
-						if (line.startsWith("File")) {
-							String fileName = line.substring(
-									line.indexOf("=") + 1).trim();
-							uriList.add(Uri.parse(fileName));
-						}
-					}
-				} while (line != null);
-				if (uriList.size() > 0) {
-					Uri[] res = new Uri[uriList.size()];
-					return uriList.toArray(res);
-				}
+			double duration = Double.parseDouble(seconds.trim());
+			if (duration > 0) {
+				return (int) Math.round(duration * 1000);
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+		} catch (NumberFormatException e) {
+			// Unknown.
 		}
-		return new Uri[] { uri };
+		return Playlist.UNKNOWN_DURATION;
 	}
 
-	private static Uri[] parseM3u(Uri uri) {
+	/*
+	 * A media playlist, of segments, is left alone (null). A master
+	 * playlist comes back as the variant to play.
+	 */
+	private static Playlist parseHls(Uri master, BufferedReader reader,
+			URL base) throws IOException {
+		ArrayList<HlsVariantSelector.Variant> variants = new ArrayList<HlsVariantSelector.Variant>();
+		long bandwidth = -1;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.regionMatches(true, 0, STREAM_INF, 0, STREAM_INF.length())) {
+				Matcher matcher = BANDWIDTH.matcher(line.substring(STREAM_INF
+						.length()));
+				bandwidth = matcher.find() ? Long.parseLong(matcher.group(1))
+						: 0;
+			} else if (bandwidth != -1 && line.length() > 0
+					&& !line.startsWith("#")) {
+				variants.add(new HlsVariantSelector.Variant(resolve(base, line),
+						bandwidth));
+				bandwidth = -1;
+			}
+		}
+		if (variants.isEmpty()) {
+			return null;
+		}
+		return new Playlist(HlsVariantSelector.getDefault().select(
+				master,
+				variants.toArray(new HlsVariantSelector.Variant[variants
+						.size()])));
+	}
 
+	/*
+	 * Entries may be relative to the playlist.
+	 */
+	private static Uri resolve(URL base, String entry) {
 		try {
-			HttpClient httpclient = new DefaultHttpClient();
-			HttpResponse response = httpclient.execute(new HttpGet(uri
-					.toString()));
-			HttpEntity entity = response.getEntity();
-			InputStream inputStream = entity.getContent();
-			BufferedReader reader = new BufferedReader(new InputStreamReader(
-					inputStream));
-			String line;
-			ArrayList<Uri> uriList = new ArrayList<Uri>();
-			do {
-				line = reader.readLine();
-				if (line != null) {
-					if (!line.startsWith("#")) {
-						uriList.add(Uri.parse(line.trim()));
-					}
-				}
-			} while (line != null);
-			if (uriList.size() > 0) {
-				Uri[] res = new Uri[uriList.size()];
-				return uriList.toArray(res);
+			return Uri.parse(new URL(base, entry).toString());
+		} catch (IOException e) {
+			return Uri.parse(entry);
+		}
+	}
+
+	/*
+	 * Counts the bytes read from the network, for throughput samples. The
+	 * clock starts once the first bytes are in, and those bytes aren't
+	 * counted, so that the time to first byte doesn't count against the
+	 * throughput.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long mCount = 0;
+		private long mFirstCount = 0;
+		private long mFirstByteAt = -1;
+
+		private CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			if (read != -1) {
+				count(1);
 			}
-		} catch (Exception e) {
+			return read;
+		}
 
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			int read = super.read(buffer, offset, count);
+			if (read > 0) {
+				count(read);
+			}
+			return read;
+		}
+
+		private void count(int read) {
+			mCount += read;
+			if (mFirstByteAt == -1) {
+				mFirstByteAt = SystemClock.elapsedRealtime();
+				mFirstCount = mCount;
+			}
+		}
+
+		private long getCount() {
+			return mCount;
+		}
+
+		private void addSample() {
+			if (mFirstByteAt != -1) {
+				HlsVariantSelector.getDefault().addSample(
+						mCount - mFirstCount,
+						SystemClock.elapsedRealtime() - mFirstByteAt);
+			}
 		}
-		return new Uri[] { uri };
 	}
 
+	private static void closeQuietly(InputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Nothing left to do with it.
+			}
+		}
+	}
 }
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.util;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+/**
+ * Runs delayed work for PlayerHater's timers (idle player reclaim and the
+ * like) so that they share one background thread instead of each starting
+ * their own.
+ */
+public abstract class Scheduler {
+
+	private static Scheduler sDefault;
+
+	/**
+	 * @return The scheduler shared by PlayerHater's components, which runs
+	 *         its tasks on a single background thread.
+	 */
+	public static synchronized Scheduler getDefault() {
+		if (sDefault == null) {
+			HandlerThread thread = new HandlerThread("PlayerHaterScheduler");
+			thread.start();
+			sDefault = new HandlerScheduler(new Handler(thread.getLooper()));
+		}
+		return sDefault;
+	}
+
+	/**
+	 * Replaces the scheduler returned by {@link #getDefault()}, so that
+	 * PlayerHater's components can be driven by a {@link VirtualScheduler}
+	 * off-device. Components pick up the default when they are created, so
+	 * set it before creating players, pools or the service.
+	 * 
+	 * @param scheduler
+	 *            The scheduler to share, or {@code null} to go back to the
+	 *            background thread.
+	 */
+	public static synchronized void setDefault(Scheduler scheduler) {
+		sDefault = scheduler;
+	}
+
+	/**
+	 * @return The current time, in milliseconds, on this scheduler's clock.
+	 */
+	public abstract long uptimeMillis();
+
+	/**
+	 * Runs {@code task} once {@code delayMillis} have passed on this
+	 * scheduler's clock.
+	 */
+	public abstract void postDelayed(Runnable task, long delayMillis);
+
+	/**
+	 * Removes any pending runs of {@code task}.
+	 */
+	public abstract void removeCallbacks(Runnable task);
+
+	public void post(Runnable task) {
+		postDelayed(task, 0);
+	}
+
+	private static class HandlerScheduler extends Scheduler {
+		private final Handler mHandler;
+
+		private HandlerScheduler(Handler handler) {
+			mHandler = handler;
+		}
+
+		@Override
+		public long uptimeMillis() {
+			return SystemClock.uptimeMillis();
+		}
+
+		@Override
+		public void postDelayed(Runnable task, long delayMillis) {
+			mHandler.postDelayed(task, delayMillis);
+		}
+
+		@Override
+		public void removeCallbacks(Runnable task) {
+			mHandler.removeCallbacks(task);
+		}
+	}
+}
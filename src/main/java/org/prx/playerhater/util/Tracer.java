@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.util;
+
+import java.util.Random;
+
+/**
+ * Times the steps a request goes through on its way from the client to the
+ * player, so that the time it takes can be put down to the binder call, the
+ * handler queue, the player pool, the data source or the native prepare.
+ * <p>
+ * Every step is a {@link Span}. Spans which belong to the same request share
+ * a trace id, which follows the request from thread to thread and across
+ * the binder. Finished spans are handed to the {@link Sink} set with
+ * {@link #setSink(Sink)}; while there isn't one, tracing does nothing.
+ * <p>
+ * Times are {@link System#nanoTime()}, which on Android reads the
+ * system-wide monotonic clock, so spans from the client and the service
+ * can be laid out on the same timeline.
+ */
+public final class Tracer {
+
+	/**
+	 * Receives finished spans. Called on the thread which finished the span,
+	 * often with locks held, so it must return quickly.
+	 */
+	public interface Sink {
+		void onSpan(Span span);
+	}
+
+	/**
+	 * Logs every span with {@link Log#d(String)}.
+	 */
+	public static final Sink LOG_SINK = new Sink() {
+
+		@Override
+		public void onSpan(Span span) {
+			Log.d(span.toString());
+		}
+	};
+
+	public static final long NO_TRACE = 0;
+
+	private static final class Context {
+		private long traceId = NO_TRACE;
+	}
+
+	private static final ThreadLocal<Context> sContext = new ThreadLocal<Context>() {
+
+		@Override
+		protected Context initialValue() {
+			return new Context();
+		}
+	};
+
+	private static final Random sRandom = new Random();
+	private static volatile Sink sSink;
+
+	private Tracer() {
+	}
+
+	public static void setSink(Sink sink) {
+		sSink = sink;
+	}
+
+	public static boolean isEnabled() {
+		return sSink != null;
+	}
+
+	public static long now() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * @return The trace id of the request this thread is working on, or
+	 *         {@link #NO_TRACE}.
+	 */
+	public static long currentTraceId() {
+		return sSink == null ? NO_TRACE : sContext.get().traceId;
+	}
+
+	/**
+	 * Starts a span for a new request, with a new trace id.
+	 */
+	public static Span beginTrace(String name) {
+		if (sSink == null) {
+			return Span.NONE;
+		}
+		return new Span(name, newTraceId());
+	}
+
+	/**
+	 * Starts a span for the request this thread is working on, or for a new
+	 * one if it isn't working on any.
+	 */
+	public static Span begin(String name) {
+		return resume(name, currentTraceId());
+	}
+
+	/**
+	 * Starts a span for the request with {@code traceId}, which was handed
+	 * over from another thread or process, or for a new request if
+	 * {@code traceId} is {@link #NO_TRACE}. Until the span ends, this thread
+	 * is working on that request.
+	 */
+	public static Span resume(String name, long traceId) {
+		if (sSink == null) {
+			return Span.NONE;
+		}
+		return new Span(name, traceId == NO_TRACE ? newTraceId() : traceId);
+	}
+
+	/**
+	 * Reports a span which has already finished, for steps which start on
+	 * one thread and finish on another. Does nothing if {@code traceId} is
+	 * {@link #NO_TRACE}.
+	 */
+	public static void record(String name, long traceId, long start, long end) {
+		Sink sink = sSink;
+		if (sink != null && traceId != NO_TRACE) {
+			sink.onSpan(new Span(name, traceId, start, end));
+		}
+	}
+
+	private static long newTraceId() {
+		long traceId;
+		synchronized (sRandom) {
+			do {
+				traceId = sRandom.nextLong();
+			} while (traceId == NO_TRACE);
+		}
+		return traceId;
+	}
+
+	public static final class Span {
+
+		private static final Span NONE = new Span(null, NO_TRACE, 0, 0);
+
+		private final String mName;
+		private final long mTraceId;
+		private final long mStart;
+		private final String mThread;
+		private final long mPreviousTraceId;
+		private long mEnd = -1;
+
+		private Span(String name, long traceId) {
+			mName = name;
+			mTraceId = traceId;
+			mThread = Thread.currentThread().getName();
+			Context context = sContext.get();
+			mPreviousTraceId = context.traceId;
+			context.traceId = traceId;
+			mStart = now();
+		}
+
+		private Span(String name, long traceId, long start, long end) {
+			mName = name;
+			mTraceId = traceId;
+			mThread = Thread.currentThread().getName();
+			mPreviousTraceId = NO_TRACE;
+			mStart = start;
+			mEnd = end;
+		}
+
+		/**
+		 * Finishes the span and hands it to the sink. Must be called on the
+		 * thread which started it; it is usually called in a
+		 * {@code finally} block.
+		 */
+		public void end() {
+			if (this == NONE || mEnd != -1) {
+				return;
+			}
+			mEnd = now();
+			sContext.get().traceId = mPreviousTraceId;
+			Sink sink = sSink;
+			if (sink != null) {
+				sink.onSpan(this);
+			}
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public long getTraceId() {
+			return mTraceId;
+		}
+
+		/**
+		 * @return The name of the thread the span started on.
+		 */
+		public String getThreadName() {
+			return mThread;
+		}
+
+		public long getStartNanos() {
+			return mStart;
+		}
+
+		/**
+		 * @return When the span ended, or -1 if it hasn't.
+		 */
+		public long getEndNanos() {
+			return mEnd;
+		}
+
+		public long getDurationNanos() {
+			return mEnd == -1 ? -1 : mEnd - mStart;
+		}
+
+		@Override
+		public String toString() {
+			return "Span [trace=" + Long.toHexString(mTraceId) + ", name="
+					+ mName + ", thread=" + mThread + ", start=" + mStart
+					+ ", durationMicros=" + getDurationNanos() / 1000 + "]";
+		}
+	}
+}
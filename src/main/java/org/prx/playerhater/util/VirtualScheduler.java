@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright 2014 Chris Rhoden, Rebecca Nesson, Public Radio Exchange
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.prx.playerhater.util;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * A {@link Scheduler} whose clock only moves when it is told to, for
+ * running players and pools deterministically in benchmarks and on a plain
+ * JVM.
+ * <p>
+ * Tasks run on the thread which calls {@link #advanceBy(long)} or
+ * {@link #runUntilIdle(int)}, in the order they are due; tasks due at the same
+ * time run in the order they were posted.
+ */
+public class VirtualScheduler extends Scheduler {
+
+	private static final class Task implements Comparable<Task> {
+		private final Runnable runnable;
+		private final long when;
+		private final long sequence;
+
+		private Task(Runnable runnable, long when, long sequence) {
+			this.runnable = runnable;
+			this.when = when;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Task another) {
+			if (when != another.when) {
+				return when < another.when ? -1 : 1;
+			}
+			return sequence < another.sequence ? -1
+					: (sequence == another.sequence ? 0 : 1);
+		}
+	}
+
+	private final PriorityQueue<Task> mTasks = new PriorityQueue<Task>();
+	private long mNow;
+	private long mSequence = 0;
+
+	public VirtualScheduler() {
+		this(0);
+	}
+
+	public VirtualScheduler(long startTime) {
+		mNow = startTime;
+	}
+
+	@Override
+	public synchronized long uptimeMillis() {
+		return mNow;
+	}
+
+	@Override
+	public synchronized void postDelayed(Runnable task, long delayMillis) {
+		mTasks.add(new Task(task, mNow + Math.max(0, delayMillis), mSequence++));
+	}
+
+	@Override
+	public synchronized void removeCallbacks(Runnable task) {
+		Iterator<Task> tasks = mTasks.iterator();
+		while (tasks.hasNext()) {
+			if (tasks.next().runnable == task) {
+				tasks.remove();
+			}
+		}
+	}
+
+	/**
+	 * Moves the clock forward by {@code millis}, running every task which
+	 * falls due on the way, including tasks those tasks post.
+	 */
+	public void advanceBy(long millis) {
+		long target;
+		synchronized (this) {
+			target = mNow + millis;
+		}
+		while (true) {
+			Task task;
+			synchronized (this) {
+				task = mTasks.peek();
+				if (task == null || task.when > target) {
+					mNow = target;
+					return;
+				}
+				mTasks.poll();
+				mNow = task.when;
+			}
+			task.runnable.run();
+		}
+	}
+
+	/**
+	 * Runs tasks, moving the clock forward as needed, until none are left or
+	 * {@code maxTasks} have run.
+	 *
+	 * @return The number of tasks run.
+	 */
+	public int runUntilIdle(int maxTasks) {
+		int run = 0;
+		while (run < maxTasks) {
+			Task task;
+			synchronized (this) {
+				task = mTasks.poll();
+				if (task == null) {
+					break;
+				}
+				mNow = Math.max(mNow, task.when);
+			}
+			task.runnable.run();
+			run++;
+		}
+		return run;
+	}
+
+	/**
+	 * @return The number of tasks waiting to run.
+	 */
+	public synchronized int getPendingCount() {
+		return mTasks.size();
+	}
+}
@@ -26,12 +26,15 @@ import org.prx.playerhater.ipc.IPlayerHaterServer;
 import org.prx.playerhater.ipc.PlayerHaterClient;
 import org.prx.playerhater.ipc.PlayerHaterServer;
 import org.prx.playerhater.ipc.ServerPlayerHater;
+import org.prx.playerhater.mediaplayer.MediaPlayerPoolStats;
+import org.prx.playerhater.mediaplayer.PlaybackQualityStats;
 import org.prx.playerhater.plugins.BackgroundedPlugin;
 import org.prx.playerhater.plugins.PluginCollection;
 import org.prx.playerhater.songs.SongHost;
 import org.prx.playerhater.songs.SongQueue;
 import org.prx.playerhater.songs.SongQueue.OnQueuedSongsChangedListener;
 import org.prx.playerhater.util.Config;
+import org.prx.playerhater.util.Tracer;
 
 import android.annotation.SuppressLint;
 import android.app.PendingIntent;
@@ -48,6 +51,7 @@ public class BoundPlayerHater extends PlayerHater {
 	private static Handler sHandler;
 	private static Runnable sRunnable;
 	private static PlayerHater sPlayerHater;
+	private static PlayerHaterServer sLocalServer;
 	private static Set<BoundPlayerHater> sInstances;
 	private static PlayerHaterClient sClient;
 	private static PluginCollection sPlugins;
@@ -80,6 +84,7 @@ public class BoundPlayerHater extends PlayerHater {
 							sApplicationContext.unbindService(sServiceConnection);
 						}
 						sPlayerHater = null;
+						sLocalServer = null;
 					}
 				}
 			};
@@ -163,6 +168,10 @@ public class BoundPlayerHater extends PlayerHater {
 								getPlugin().onNextSongUnavailable();
 							}
 						}
+
+						@Override
+						public void onQueueChanged() {
+						}
 					});
 		}
 		return sSongQueue;
@@ -177,6 +186,9 @@ public class BoundPlayerHater extends PlayerHater {
 						.asInterface(service);
 				if (!(service instanceof PlayerHaterServer)) {
 					SongHost.setRemote(server);
+					sLocalServer = null;
+				} else {
+					sLocalServer = (PlayerHaterServer) service;
 				}
 
 				try {
@@ -219,6 +231,7 @@ public class BoundPlayerHater extends PlayerHater {
 		@Override
 		public void onServiceDisconnected(ComponentName name) {
 			sPlayerHater = null;
+			sLocalServer = null;
 		}
 	};
 
@@ -253,6 +266,26 @@ public class BoundPlayerHater extends PlayerHater {
 		return true;
 	}
 
+	@Override
+	public PlaybackQualityStats getPlaybackQualityStats() {
+		PlayerHaterServer server = sLocalServer;
+		return server != null ? server.getPlaybackQualityStats() : null;
+	}
+
+	@Override
+	public MediaPlayerPoolStats getMediaPlayerPoolStats() {
+		PlayerHaterServer server = sLocalServer;
+		return server != null ? server.getMediaPlayerPoolStats() : null;
+	}
+
+	@Override
+	public void resetMediaPlayerPoolStats() {
+		PlayerHaterServer server = sLocalServer;
+		if (server != null) {
+			server.resetMediaPlayerPoolStats();
+		}
+	}
+
 	@Override
 	public boolean release() {
 		removeCurrentPlugin();
@@ -322,7 +355,12 @@ public class BoundPlayerHater extends PlayerHater {
 			getSongQueue().skipToEnd();
 			return true;
 		} else {
-			return getPlayerHater().play(song, startTime);
+			Tracer.Span span = Tracer.beginTrace("client.play");
+			try {
+				return getPlayerHater().play(song, startTime);
+			} finally {
+				span.end();
+			}
 		}
 	}
 
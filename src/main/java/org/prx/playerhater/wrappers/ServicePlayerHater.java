@@ -3,6 +3,8 @@ package org.prx.playerhater.wrappers;
 import org.prx.playerhater.PlayerHater;
 import org.prx.playerhater.Song;
 import org.prx.playerhater.ipc.IPlayerHaterClient;
+import org.prx.playerhater.mediaplayer.MediaPlayerPoolStats;
+import org.prx.playerhater.mediaplayer.PlaybackQualityStats;
 import org.prx.playerhater.service.PlayerHaterService;
 
 import android.app.Notification;
@@ -168,4 +170,19 @@ public class ServicePlayerHater extends PlayerHater {
 	public int getTransportControlFlags() {
 		return mService.getTransportControlFlags();
 	}
+
+	@Override
+	public PlaybackQualityStats getPlaybackQualityStats() {
+		return mService.getPlaybackQualityStats();
+	}
+
+	@Override
+	public MediaPlayerPoolStats getMediaPlayerPoolStats() {
+		return mService.getMediaPlayerPoolStats();
+	}
+
+	@Override
+	public void resetMediaPlayerPoolStats() {
+		mService.resetMediaPlayerPoolStats();
+	}
 }
@@ -21,6 +21,9 @@ import android.os.HandlerThread;
 
 import org.prx.playerhater.PlayerHater;
 import org.prx.playerhater.Song;
+import org.prx.playerhater.mediaplayer.MediaPlayerPoolStats;
+import org.prx.playerhater.mediaplayer.PlaybackQualityStats;
+import org.prx.playerhater.util.Tracer;
 
 public class ThreadsafePlayerHater extends PlayerHater {
 
@@ -169,14 +172,9 @@ public class ThreadsafePlayerHater extends PlayerHater {
 
 	@Override
 	public int getCurrentPosition() {
-		return new PlayerHaterTask<Integer>(mHandler) {
-
-			@Override
-			protected Integer run() {
-				return mPlayerHater.getCurrentPosition();
-			}
-
-		}.get();
+		// Positions are read without the service's lock, so this is safe
+		// from any thread and needn't wait behind work on the handler.
+		return mPlayerHater.getCurrentPosition();
 	}
 
 	@Override
@@ -351,12 +349,15 @@ public class ThreadsafePlayerHater extends PlayerHater {
 
 		private final Handler mHandler;
 		private final Runnable mRunnable;
+		private final long mTraceId;
 		private State mState = State.IDLE;
 		private V mResult;
+		private long mPostedAt;
 
 		public PlayerHaterTask(Handler handler) {
 			mHandler = handler;
 			mRunnable = new WorkRunnable();
+			mTraceId = Tracer.currentTraceId();
 		}
 
 		public synchronized V get() {
@@ -375,6 +376,7 @@ public class ThreadsafePlayerHater extends PlayerHater {
 		}
 
 		protected void start() {
+			mPostedAt = Tracer.now();
 			mHandler.post(mRunnable);
 			mState = State.WAITING;
 		}
@@ -396,11 +398,19 @@ public class ThreadsafePlayerHater extends PlayerHater {
 			@Override
 			public synchronized void run() {
 				mState = State.RUNNING;
+				Tracer.record("handler.queue", mTraceId, mPostedAt,
+						Tracer.now());
+				Tracer.Span span = mTraceId == Tracer.NO_TRACE ? null
+						: Tracer.resume("handler.run", mTraceId);
 				try {
 					set(PlayerHaterTask.this.run());
 				} catch (Throwable exception) {
 					set(null);
 					throw new RuntimeException(exception);
+				} finally {
+					if (span != null) {
+						span.end();
+					}
 				}
 			}
 
@@ -418,4 +428,21 @@ public class ThreadsafePlayerHater extends PlayerHater {
 
 		}.get();
 	}
+
+	@Override
+	public PlaybackQualityStats getPlaybackQualityStats() {
+		// Stats are snapshots, so this is safe from any thread.
+		return mPlayerHater.getPlaybackQualityStats();
+	}
+
+	@Override
+	public MediaPlayerPoolStats getMediaPlayerPoolStats() {
+		// The pool takes its own lock, so this is safe from any thread.
+		return mPlayerHater.getMediaPlayerPoolStats();
+	}
+
+	@Override
+	public void resetMediaPlayerPoolStats() {
+		mPlayerHater.resetMediaPlayerPoolStats();
+	}
 }